@@ -0,0 +1,51 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing benchmarks over a frame sized body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashingBenchmark {
+
+  String body = "CHATTER/1.0\r\n"
+      + "id:0f3b9a7c2d4e4f6a8b1c2d3e4f5a6b7c\r\n"
+      + "recipient:bob\r\n"
+      + "text:Hey, are we still on for lunch tomorrow at noon?\r\n"
+      + "token:9a8b7c6d5e4f40312a1b2c3d4e5f6a7b\r\n"
+      + "type:send\r\n";
+
+  ByteBuffer buffer = ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+
+  @Benchmark
+  public String generateHash() {
+    return Hashing.generateHash(body);
+  }
+
+  @Benchmark
+  public String hashBuffer() {
+    return Hashing.hash(buffer, 0, buffer.limit());
+  }
+
+  @Benchmark
+  public String generateRandomHash() {
+    return Hashing.generateRandomHash();
+  }
+}
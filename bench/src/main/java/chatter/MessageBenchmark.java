@@ -0,0 +1,101 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Message codec benchmarks for a typical send request, in both protocol versions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+  @State(Scope.Thread)
+  public static class Frames {
+
+    @Param({ "1.0", "2.0" })
+    String version;
+
+    Map<String, String> message;
+    Map<String, String> hashed;
+    byte[] encoded;
+
+    @Setup
+    public void setup() {
+      message = sample();
+      encoded = Message.encode(message, version);
+
+      // a map still carrying its hash, as validate sees maps that were not produced by decode
+      hashed = sample();
+      String frame = new String(Message.encode(hashed), StandardCharsets.UTF_8);
+      hashed.put("hash", frame.substring(frame.lastIndexOf("hash:") + 5));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Buffer {
+    Map<String, String> message = sample();
+    ByteBuffer buffer = ByteBuffer.allocate(65536);
+  }
+
+  static Map<String, String> sample() {
+    return map(
+        "id", "0f3b9a7c2d4e4f6a8b1c2d3e4f5a6b7c",
+        "type", "send",
+        "token", "9a8b7c6d5e4f40312a1b2c3d4e5f6a7b",
+        "recipient", "bob",
+        "text", "Hey, are we still on for lunch tomorrow at noon?");
+  }
+
+  static Map<String, String> map(String... pairs) {
+    Map<String, String> map = new HashMap<>();
+    for (int i = 0; i < pairs.length; i += 2) {
+      map.put(pairs[i], pairs[i + 1]);
+    }
+    return map;
+  }
+
+  @Benchmark
+  public byte[] encode(Frames f) {
+    return Message.encode(f.message, f.version);
+  }
+
+  @Benchmark
+  public int encodeIntoBuffer(Buffer b) {
+    b.buffer.clear();
+    return Message.encode(b.message, b.buffer);
+  }
+
+  @Benchmark
+  public Map<String, String> decode(Frames f) {
+    return Message.decode(f.encoded, f.encoded.length);
+  }
+
+  @Benchmark
+  public boolean decodeAndValidate(Frames f) {
+    return Message.validate(Message.decode(f.encoded, f.encoded.length));
+  }
+
+  @Benchmark
+  public boolean validateRebuilt(Frames f) {
+    return Message.validate(f.hashed);
+  }
+}
@@ -0,0 +1,113 @@
+package chatter;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end server request path, driven by in-memory packets through Server.RequestHandler.
+ *
+ * One operation is a full delivery: alice's send, bob's ack of the forward and alice's ack of the received
+ * notification. The server's own replies are captured in memory and decoded to learn the ids to acknowledge,
+ * which leaves the server's in-flight state empty after every operation.
+ *
+ * The server runs with a single shard so that work handed between shards runs inline and every reply has been
+ * captured by the time a request returns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchatter.shards=1")
+@State(Scope.Thread)
+public class ServerBenchmark {
+
+  private static final int ALICE = 40001;
+  private static final int BOB = 40002;
+
+  @Param({ "1.0", "2.0" })
+  String version;
+
+  Server server;
+  Capture capture;
+  String aliceToken;
+  String bobToken;
+
+  @Setup
+  public void setup() {
+    server = new Server();
+    capture = new Capture();
+
+    aliceToken = register("alice", ALICE);
+    bobToken = register("bob", BOB);
+  }
+
+  private String register(String username, int port) {
+    handle(MessageBenchmark.map("type", "register", "username", username, "codec", version), port);
+
+    Map<String, String> credentials = reply(port);
+    String token = credentials.get("token");
+
+    handle(MessageBenchmark.map("type", "ack", "target", credentials.get("id"), "token", token), port);
+    return token;
+  }
+
+  private void handle(Map<String, String> request, int port) {
+    byte[] bytes = Message.encode(request, version);
+    InetSocketAddress from = new InetSocketAddress("127.0.0.1", port);
+
+    server.new RequestHandler(capture, ByteBuffer.wrap(bytes), from, null).run();
+  }
+
+  private Map<String, String> reply(int port) {
+    byte[] bytes = capture.lastSentTo(port);
+    return Message.decode(bytes, bytes.length);
+  }
+
+  @Benchmark
+  public Map<String, String> deliver() {
+    handle(MessageBenchmark.map("type", "send", "recipient", "bob", "text", "Hey, are we still on for lunch?", "token", aliceToken), ALICE);
+
+    Map<String, String> forward = reply(BOB);
+    handle(MessageBenchmark.map("type", "ack", "target", forward.get("id"), "token", bobToken), BOB);
+
+    Map<String, String> received = reply(ALICE);
+    handle(MessageBenchmark.map("type", "ack", "target", received.get("id"), "token", aliceToken), ALICE);
+
+    return received;
+  }
+
+  /**
+   * Outbound that never touches the network and remembers the last datagram sent to each port, so that the server's
+   * replies can be read back in memory.
+   */
+  static class Capture implements Outbound {
+    private final Map<Integer, byte[]> last = new HashMap<>();
+
+    @Override
+    public synchronized void send(ByteBuffer frame, SocketAddress target) {
+      byte[] copy = new byte[frame.remaining()];
+      frame.get(copy);
+      last.put(((InetSocketAddress) target).getPort(), copy);
+    }
+
+    synchronized byte[] lastSentTo(int port) {
+      return last.get(port);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package chatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * AckTracker records which of the sequence numbers the server puts on its messages have been received, and describes
+ * them in a single ack: a cumulative sequence number below which everything has arrived, plus selective (sack) ranges
+ * of whatever has arrived beyond a gap.
+ *
+ * Acks are delayed rather than sent per message. Callers send one once a few messages are waiting to be acknowledged or
+ * a short delay has passed since the first of them, whichever comes first.
+ *
+ * @version     1.0
+ */
+public class AckTracker {
+
+  /**
+   * Most sack ranges put in one ack. Anything beyond is acknowledged by a later ack once the ranges before it close.
+   */
+  public static final int MAX_RANGES = 16;
+
+  /**
+   * Most sequence numbers kept beyond a gap. Further messages are refused, left unacknowledged for the server to
+   * retransmit once the gap has closed.
+   */
+  public static final int MAX_AHEAD = 1024;
+
+  /**
+   * How long in ms a gap stays open before it is given up on. A message the server abandoned will never arrive to fill
+   * it, but acknowledging past one the server is still retrying would report it delivered, so this outlasts the
+   * server's longest retry span.
+   */
+  public static final long GAP_TIMEOUT = RetransmitScheduler.MAX_SPAN + 10000;
+
+  private long cumulative = 0;  // every sequence number up to and including this one has been received
+  private final TreeSet<Long> ahead = new TreeSet<>();
+  private long gapOpened;  // when the first message beyond the current gap arrived
+  private int pending = 0;  // messages received since the last ack
+
+  /**
+   * Records a received sequence number.
+   *
+   * @return false if it had already been received, in which case the message is a retransmission whose ack was lost,
+   *         or if it is too far beyond a gap to keep, in which case it is left for the server to retransmit
+   */
+  public boolean receive(long seq) {
+    return receive(seq, System.currentTimeMillis());
+  }
+
+  /**
+   * Records a received sequence number, given the time in ms it arrived.
+   *
+   * @return false if it had already been received or is too far beyond a gap to keep
+   */
+  synchronized boolean receive(long seq, long now) {
+    pending++;
+
+    if (!ahead.isEmpty() && now - gapOpened >= GAP_TIMEOUT) {
+      // the server has given up on whatever is missing
+      cumulative = ahead.first() - 1;
+      advance(now);
+    }
+
+    if (seq <= cumulative || ahead.contains(seq)) {
+      return false;
+    }
+
+    if (seq != cumulative + 1 && ahead.size() >= MAX_AHEAD) {
+      return false;
+    }
+
+    if (ahead.isEmpty()) {
+      gapOpened = now;
+    }
+
+    ahead.add(seq);
+    advance(now);
+    return true;
+  }
+
+  /**
+   * Folds whatever follows the cumulative ack without a gap into it.
+   */
+  private void advance(long now) {
+    long before = cumulative;
+
+    while (!ahead.isEmpty() && ahead.first() == cumulative + 1) {
+      cumulative = ahead.pollFirst();
+    }
+
+    // a gap further on starts its wait afresh, since nothing says how long it has been open
+    if (cumulative != before) {
+      gapOpened = now;
+    }
+  }
+
+  /**
+   * Number of messages received since the last ack was built.
+   */
+  public synchronized int getPending() {
+    return pending;
+  }
+
+  /**
+   * Puts the cumulative and sack fields describing everything received so far into an ack.
+   */
+  public synchronized void fill(Map<String, String> ack) {
+    ack.put("cumulative", Long.toString(cumulative));
+
+    if (!ahead.isEmpty()) {
+      ack.put("sack", formatRanges(ahead));
+    }
+
+    pending = 0;
+  }
+
+  /**
+   * Puts the cumulative and sack fields describing everything received so far into an ack.
+   */
+  public synchronized void fill(Envelope ack) {
+    ack.set(Envelope.Field.CUMULATIVE, cumulative);
+
+    if (!ahead.isEmpty()) {
+      ack.set(Envelope.Field.SACK, formatRanges(ahead));
+    }
+
+    pending = 0;
+  }
+
+  /**
+   * Formats ascending sequence numbers as comma separated first-last ranges, e.g. 4-6,9-9.
+   */
+  static String formatRanges(TreeSet<Long> seqs) {
+    StringBuilder builder = new StringBuilder();
+    Iterator<Long> it = seqs.iterator();
+
+    long first = it.next();
+    long last = first;
+    int ranges = 0;
+
+    while (ranges < MAX_RANGES) {
+      Long next = it.hasNext() ? it.next() : null;
+
+      if (next != null && next == last + 1) {
+        last = next;
+        continue;
+      }
+
+      if (ranges++ > 0) {
+        builder.append(',');
+      }
+      builder.append(first).append('-').append(last);
+
+      if (next == null) {
+        break;
+      }
+
+      first = last = next;
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * Parses sack ranges as written by formatRanges, ignoring any beyond MAX_RANGES.
+   *
+   * @return first and last sequence number of each range
+   * @throws NumberFormatException if the ranges are malformed
+   */
+  public static List<long[]> parseRanges(String sack) {
+    if (sack == null || sack.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<long[]> ranges = new ArrayList<>();
+
+    for (String range : sack.split(",", MAX_RANGES + 1)) {
+      if (ranges.size() == MAX_RANGES) {
+        break;
+      }
+
+      int dash = range.indexOf('-');
+
+      if (dash < 0) {
+        throw new NumberFormatException("malformed sack range " + range);
+      }
+
+      long first = Long.parseLong(range.substring(0, dash));
+      long last = Long.parseLong(range.substring(dash + 1));
+
+      if (first > last) {
+        throw new NumberFormatException("malformed sack range " + range);
+      }
+
+      ranges.add(new long[] { first, last });
+    }
+
+    return ranges;
+  }
+}
@@ -0,0 +1,201 @@
+package chatter;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BatchingOutbound queues frames per destination and coalesces them into a single datagram, trading a short delay
+ * for fewer send syscalls.
+ *
+ * A destination's batch is flushed when the next frame would not fit within the datagram budget, or once the oldest
+ * frame in it has waited for the configured delay. A batch holding a single frame is sent as that plain frame, so
+ * only receivers that can split batches (see Message.split) should be sent frames marked as coalescible.
+ *
+ * @version     1.0
+ */
+public class BatchingOutbound implements Outbound {
+
+  private final Outbound delegate;
+  private final int budget;
+  private final long delay;  // ns
+
+  private final Map<SocketAddress, Batch> batches = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+  private final Thread flusher;
+
+  private final AtomicLong frames = new AtomicLong();
+  private final AtomicLong datagrams = new AtomicLong();
+
+  /**
+   * @param delegate  path the coalesced datagrams are written to
+   * @param budget    maximum datagram size in bytes
+   * @param delay     longest time in microseconds a frame may wait for company
+   */
+  public BatchingOutbound(Outbound delegate, int budget, long delay) {
+    this.delegate = delegate;
+    this.budget = budget;
+    this.delay = delay * 1000;
+
+    flusher = new Thread(this::loop, "chatter-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Wraps an outbound in a batching stage configured from the chatter.batch.budget and chatter.batch.delay system
+   * properties, or returns it as is if the delay is zero.
+   */
+  public static Outbound fromProperties(Outbound delegate) {
+    int budget = Integer.getInteger("chatter.batch.budget", 1400);
+    long delay = Long.getLong("chatter.batch.delay", 250);  // us
+
+    return delay > 0 ? new BatchingOutbound(delegate, budget, delay) : delegate;
+  }
+
+  @Override
+  public void send(ByteBuffer frame, SocketAddress target) {
+    frames.incrementAndGet();
+    datagrams.incrementAndGet();
+    delegate.send(frame, target);
+  }
+
+  @Override
+  public void send(ByteBuffer frame, SocketAddress target, boolean coalesce) {
+    if (!coalesce) {
+      send(frame, target);
+      return;
+    }
+
+    frames.incrementAndGet();
+
+    Batch batch = batches.computeIfAbsent(target, Batch::new);
+    Pending p = null;
+
+    synchronized (batch) {
+      if (1 + Message.BATCH_OVERHEAD + frame.remaining() > budget) {
+        // too large to ever share a datagram, keep ordering by flushing what came before
+        flush(batch);
+        datagrams.incrementAndGet();
+        delegate.send(frame, target);
+        return;
+      }
+
+      if (batch.buffer.position() + Message.BATCH_OVERHEAD + frame.remaining() > budget) {
+        flush(batch);
+      }
+
+      if (batch.count == 0) {
+        batch.buffer.put(Message.BATCH_MARKER);
+        batch.deadline = System.nanoTime() + delay;
+        p = new Pending(batch, batch.generation);
+      }
+
+      batch.buffer.putShort((short) frame.remaining());
+      batch.buffer.put(frame);
+      batch.count++;
+
+      // nothing more fits, no point waiting
+      if (budget - batch.buffer.position() <= Message.BATCH_OVERHEAD) {
+        flush(batch);
+        return;
+      }
+    }
+
+    if (p != null) {
+      pending.offer(p);
+      LockSupport.unpark(flusher);
+    }
+  }
+
+  /**
+   * Sends a batch's frames, if any. Must be called holding the batch's lock.
+   */
+  private void flush(Batch batch) {
+    if (batch.count == 0) {
+      return;
+    }
+
+    ByteBuffer out = batch.buffer;
+    out.flip();
+
+    // a lone frame goes out as is
+    if (batch.count == 1) {
+      out.position(1 + Message.BATCH_OVERHEAD);
+    }
+
+    datagrams.incrementAndGet();
+    delegate.send(out, batch.target);
+
+    out.clear();
+    batch.count = 0;
+    batch.generation++;
+  }
+
+  private void loop() {
+    while (true) {
+      Pending p = pending.peek();
+
+      if (p == null) {
+        LockSupport.park(this);
+        continue;
+      }
+
+      long wait = 0;
+
+      synchronized (p.batch) {
+        // a batch already flushed for size has moved on to a later generation
+        if (p.batch.generation == p.generation) {
+          wait = p.batch.deadline - System.nanoTime();
+
+          if (wait <= 0) {
+            flush(p.batch);
+
+            // the destination went quiet, so stop holding a buffer for it
+            batches.remove(p.batch.target, p.batch);
+          }
+        }
+      }
+
+      if (wait > 0) {
+        LockSupport.parkNanos(this, wait);
+      } else {
+        pending.poll();
+      }
+    }
+  }
+
+  public long getFrames() {
+    return frames.get();
+  }
+
+  public long getDatagrams() {
+    return datagrams.get();
+  }
+
+  private class Batch {
+    final SocketAddress target;
+    final ByteBuffer buffer = ByteBuffer.allocate(budget);
+    int count;
+    long deadline;
+    long generation;
+
+    Batch(SocketAddress target) {
+      this.target = target;
+    }
+  }
+
+  private static class Pending {
+    final Batch batch;
+    final long generation;
+
+    Pending(Batch batch, long generation) {
+      this.batch = batch;
+      this.generation = generation;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool recycles fixed size direct buffers for receiving datagrams, so the receive loop does not allocate per packet.
+ *
+ * Buffers are allocated on demand when the pool is empty and released buffers beyond its capacity are left to the
+ * garbage collector, so the pool never blocks.
+ *
+ * @version     1.0
+ */
+public class BufferPool {
+
+  private final int bufferSize;
+  private final ArrayBlockingQueue<ByteBuffer> free;
+  private final AtomicLong allocated = new AtomicLong();
+
+  public BufferPool(int bufferSize, int capacity) {
+    this.bufferSize = bufferSize;
+    this.free = new ArrayBlockingQueue<>(capacity);
+  }
+
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = free.poll();
+
+    if (buffer == null) {
+      allocated.incrementAndGet();
+      buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    return buffer;
+  }
+
+  public void release(ByteBuffer buffer) {
+    buffer.clear();
+    free.offer(buffer);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Total number of buffers allocated over the pool's lifetime.
+   */
+  public long getAllocated() {
+    return allocated.get();
+  }
+}
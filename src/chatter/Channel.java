@@ -0,0 +1,239 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Channel is a named room whose posts are fanned out to every member.
+ *
+ * Members occupy stable slots in an array which is copied whenever membership changes, so a post can take the current
+ * array as its snapshot without copying it, and track which members still owe an ack as a bitset over those slots.
+ *
+ * @version     1.0
+ */
+public class Channel {
+
+  /**
+   * A single post on its way to the members of a channel.
+   *
+   * The forward frame is encoded at most once per protocol version and the same bytes are sent to every member, all
+   * under the one message id. An ack for that id clears the acking member's bit.
+   */
+  public static class Broadcast {
+    private final String id;
+    private final Channel channel;
+    private final Session sender;
+    private final Envelope message;
+    private final Session[] members;
+    private final BitSet pending;
+    private final ByteBuffer[] frames = new ByteBuffer[4];  // text, binary, then both again compressed
+    private final long sent;
+    private volatile boolean retransmitted;
+
+    Broadcast(String id, Channel channel, Session sender, Envelope message, Session[] members, BitSet pending) {
+      this.id = id;
+      this.channel = channel;
+      this.sender = sender;
+      this.message = message;
+      this.members = members;
+      this.pending = pending;
+      this.sent = System.currentTimeMillis();
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public Channel getChannel() {
+      return channel;
+    }
+
+    public Session getSender() {
+      return sender;
+    }
+
+    /**
+     * Encoded forward frame for a protocol version and compression, shared by every member using both. Callers must
+     * send a duplicate so the shared position is never moved.
+     *
+     * @return the frame, or null if the message cannot be encoded
+     */
+    public synchronized ByteBuffer frame(String version, boolean compressed) {
+      int i = (Message.BINARY_VERSION.equals(version) ? 1 : 0) + (compressed ? 2 : 0);
+
+      if (frames[i] == null) {
+        ByteBuffer f = compressed ? frame(version, false) : Message.encodeFrame(message, version);
+
+        if (f == null) {
+          return null;
+        }
+
+        if (compressed) {
+          f = Compression.compress(f.duplicate());
+        }
+
+        // binary and compressed frames come back in a per-thread buffer, keep a copy of our own
+        ByteBuffer copy = ByteBuffer.allocate(f.remaining());
+        copy.put(f);
+        copy.flip();
+        frames[i] = copy.asReadOnlyBuffer();
+      }
+
+      return frames[i];
+    }
+
+    /**
+     * Members that have not acknowledged the post yet. Members who have since left the channel are no longer owed it.
+     */
+    public synchronized Session[] pending() {
+      for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+        if (!channel.isMember(members[i])) {
+          pending.clear(i);
+        }
+      }
+
+      Session[] out = new Session[pending.cardinality()];
+
+      int n = 0;
+      for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+        out[n++] = members[i];
+      }
+
+      return out;
+    }
+
+    /**
+     * Records an ack from a member.
+     *
+     * @return true if the session was still owed the post
+     */
+    public synchronized boolean ack(Session s) {
+      int slot = channel.slotOf(s);
+
+      if (slot < 0 || slot >= members.length || members[slot] != s || !pending.get(slot)) {
+        return false;
+      }
+
+      pending.clear(slot);
+      return true;
+    }
+
+    public synchronized boolean isComplete() {
+      return pending.isEmpty();
+    }
+
+    /**
+     * Time the post was first sent, or -1 once it has been retransmitted and can no longer be timed.
+     */
+    public long getSent() {
+      return retransmitted ? -1 : sent;
+    }
+
+    public void retransmitted() {
+      retransmitted = true;
+    }
+  }
+
+  private final String name;
+
+  private volatile Session[] members = new Session[0];
+  private final Map<String, Integer> slots = new HashMap<>();  // username -> slot
+  private int size;
+
+  public Channel(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Adds a session to the channel, reusing the first free slot.
+   *
+   * @return false if the session's user is already a member
+   */
+  public synchronized boolean join(Session s) {
+    if (slots.containsKey(s.getUsername())) {
+      return false;
+    }
+
+    Session[] next = members;
+    int slot = 0;
+
+    while (slot < next.length && next[slot] != null) {
+      slot++;
+    }
+
+    next = Arrays.copyOf(next, Math.max(next.length, slot + 1));
+    next[slot] = s;
+
+    slots.put(s.getUsername(), slot);
+    size++;
+    members = next;
+
+    return true;
+  }
+
+  /**
+   * Removes a session from the channel.
+   *
+   * @return false if the session was not a member
+   */
+  public synchronized boolean leave(Session s) {
+    Integer slot = slots.get(s.getUsername());
+
+    if (slot == null || members[slot] != s) {
+      return false;
+    }
+
+    Session[] next = members.clone();
+    next[slot] = null;
+
+    slots.remove(s.getUsername());
+    size--;
+    members = next;
+
+    return true;
+  }
+
+  public synchronized boolean isMember(Session s) {
+    Integer slot = slots.get(s.getUsername());
+    return slot != null && members[slot] == s;
+  }
+
+  synchronized int slotOf(Session s) {
+    Integer slot = slots.get(s.getUsername());
+    return slot == null ? -1 : slot;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Starts a post to every current member except the sender. The returned broadcast owns a snapshot of the membership,
+   * so members joining or leaving afterwards do not affect it.
+   *
+   * @param message  forward to send, encoded lazily by the broadcast, which keeps it so it must not come from the pool
+   */
+  public Broadcast broadcast(String id, Envelope message, Session sender) {
+    Session[] snapshot = members;
+    BitSet pending = new BitSet(snapshot.length);
+
+    for (int i = 0; i < snapshot.length; i++) {
+      if (snapshot[i] != null && snapshot[i] != sender) {
+        pending.set(i);
+      }
+    }
+
+    return new Broadcast(id, this, sender, message, snapshot, pending);
+  }
+}
@@ -0,0 +1,44 @@
+package chatter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * ChannelOutbound writes every frame straight to a datagram channel, fragmenting any that are larger than one datagram
+ * may be.
+ *
+ * @version     1.0
+ */
+class ChannelOutbound implements Outbound {
+
+  private static final Metrics.Counter SENT = Metrics.counter("server.datagrams.sent");
+  private static final Metrics.Counter FAILED = Metrics.counter("server.datagrams.failed");
+
+  private final DatagramChannel channel;
+
+  public ChannelOutbound(DatagramChannel channel) {
+    this.channel = channel;
+  }
+
+  @Override
+  public void send(ByteBuffer frame, SocketAddress target) {
+    try {
+      Fragments.split(frame, Fragments.SIZE, (datagram) -> write(datagram, target));
+    } catch (UncheckedIOException e) {
+      FAILED.increment();
+      Log.error("failed to sent packet");
+    }
+  }
+
+  private void write(ByteBuffer datagram, SocketAddress target) {
+    try {
+      channel.send(datagram, target);
+      SENT.increment();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
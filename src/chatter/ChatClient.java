@@ -0,0 +1,634 @@
+package chatter;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ChatClient is the protocol engine of a chatter client, with no user interface of its own.
+ *
+ * Requests return futures which complete once the server answers them, and everything else the server sends is
+ * reported to listeners: conversations and the delivery state of every line through the Conversations store, and
+ * registration and errors through ChatClient.Listener. Futures are completed and listeners called on the receive
+ * thread, so neither may block; a user interface hands the work over to its own thread instead.
+ *
+ * @version     1.0
+ */
+public class ChatClient {
+
+  /**
+   * Listener is told about events that are not about a conversation. Called on the receive thread, must not block.
+   */
+  public interface Listener {
+
+    /**
+     * The server has accepted a registration.
+     */
+    default void registered(String username) {}
+
+    /**
+     * The server has reported an error.
+     */
+    default void error(String text) {}
+  }
+
+  /**
+   * Interval between keepalives, well inside the server's idle timeout.
+   */
+  private static final long HEARTBEAT_INTERVAL = 30000;  // ms
+
+  /**
+   * Longest an ack is held back waiting for more messages to acknowledge along with it.
+   */
+  private static final long ACK_DELAY = 40;  // ms
+
+  /**
+   * Messages waiting to be acknowledged at which an ack is sent without waiting out the delay.
+   */
+  private static final int ACK_BATCH = 8;
+
+  /**
+   * Channel posts remembered so that a post resent because its ack was lost is only shown once.
+   */
+  private static final int POST_WINDOW = 1024;
+
+  private final InetSocketAddress server;
+  private final DatagramSocket socket;
+
+  private volatile String token;
+  private volatile String username;
+  private volatile String version = Message.VERSION;
+  private volatile boolean compressed = false;
+  private volatile CompletableFuture<String> registration;
+  private volatile String registering;  // id of the outstanding register request
+
+  private final RetransmitScheduler retransmits = new RetransmitScheduler();
+  private final RttEstimator rtt = new RttEstimator();
+  private volatile AckTracker acks = new AckTracker();
+  private final AtomicBoolean ackScheduled = new AtomicBoolean();
+  private final ScheduledExecutorService timers;
+  private final Map<String, Long> elapsed = new ConcurrentHashMap<>();  // id -> time first sent, until retransmitted
+  private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();  // id -> awaiting ack
+  private final DedupWindow posts = new DedupWindow(POST_WINDOW, 300000);  // channel posts already shown, receive thread only
+  private final Conversations conversations = new Conversations();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Binds a socket to a local ephemeral port. Nothing is received until the client is started.
+   */
+  public ChatClient(InetSocketAddress server) throws SocketException {
+    if (server.isUnresolved()) {
+      throw new SocketException("failed to resolve server address " + server.getHostString());
+    }
+
+    this.server = server;
+    this.socket = new DatagramSocket();
+
+    this.timers = Executors.newSingleThreadScheduledExecutor((r) -> {
+      Thread t = new Thread(r, "chatter-timers");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Creates a client for the server at the address set with the chatter.server system property, 127.0.0.1:8888 by
+   * default.
+   */
+  public static ChatClient fromProperties() throws SocketException {
+    String[] address = System.getProperty("chatter.server", "127.0.0.1:8888").split(":");
+    return new ChatClient(new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+  }
+
+  /**
+   * Starts receiving from the server and keeping the session alive.
+   */
+  public void start() {
+    Thread receiver = new Thread(this::receive, "chatter-receive");
+    receiver.setDaemon(true);
+    receiver.start();
+
+    timers.scheduleAtFixedRate(() -> {
+      if (token != null) {
+        Envelope request = Envelope.acquire(MessageType.HEARTBEAT);
+        send(request);
+        request.release();
+      }
+    }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Conversations of the registered user, which report every new line and change of delivery state.
+   */
+  public Conversations getConversations() {
+    return conversations;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public boolean isRegistered() {
+    return token != null;
+  }
+
+  /**
+   * Registers a username, starting afresh with that user's conversation history once the server has accepted it. The
+   * request is retransmitted until the server answers. The server does not say which request an error is about, so an
+   * error while a registration is outstanding fails the registration.
+   *
+   * @return completes with the username once the server has accepted it
+   */
+  public CompletableFuture<String> register(String name) {
+    Envelope request = Envelope.acquire(MessageType.REGISTER);
+    request.set(Envelope.Field.USERNAME, name);
+    request.set(Envelope.Field.CODEC, Message.BINARY_VERSION);
+    request.set(Envelope.Field.COMPRESSION, Compression.NAME);
+
+    // a new session starts a new sequence and a new set of conversations
+    retransmits.cancelAll();
+    elapsed.clear();
+    failAll(new IOException("registered again"));
+
+    token = null;
+    username = name;
+    version = Message.VERSION;
+    compressed = false;
+    acks = new AckTracker();
+    conversations.open(History.inMemory());
+
+    CompletableFuture<String> future = new CompletableFuture<>();
+    registration = future;
+    registering = request.getId();
+
+    // answered with credentials or an error rather than an ack
+    return request(request, future);
+  }
+
+  /**
+   * Starts a conversation with a contact. Contacts starting with # are channels, which are joined.
+   *
+   * @return completes once the conversation is started, and for a channel once the server has acked the join; fails
+   *         straight away if there already is a conversation with the contact
+   */
+  public CompletableFuture<String> addContact(String contact) {
+    if (!conversations.add(contact)) {
+      return CompletableFuture.failedFuture(new IllegalArgumentException("already have a conversation with " + contact));
+    }
+
+    if (!contact.startsWith("#")) {
+      return CompletableFuture.completedFuture(contact);
+    }
+
+    Envelope request = Envelope.acquire(MessageType.JOIN);
+    request.set(Envelope.Field.CHANNEL, contact);
+
+    return request(request);
+  }
+
+  /**
+   * Leaves a channel, so that no more posts to it arrive. The conversation with the channel is kept.
+   *
+   * @return completes once the server has acked the leave, fails straight away if the contact is not a channel
+   */
+  public CompletableFuture<String> leave(String channel) {
+    if (!channel.startsWith("#")) {
+      return CompletableFuture.failedFuture(new IllegalArgumentException(channel + " is not a channel"));
+    }
+
+    Envelope request = Envelope.acquire(MessageType.LEAVE);
+    request.set(Envelope.Field.CHANNEL, channel);
+
+    return request(request);
+  }
+
+  /**
+   * Sends a message to a contact, or posts it to a channel if the contact starts with #, adding it to the conversation
+   * with the contact. Its delivery state is reported through the conversations as it changes.
+   *
+   * @return completes with the message id once the server has acked it, fails if it never does
+   */
+  public CompletableFuture<String> send(String contact, String text) {
+    Envelope request;
+
+    if (contact.startsWith("#")) {
+      request = Envelope.acquire(MessageType.POST);
+      request.set(Envelope.Field.CHANNEL, contact);
+    } else {
+      request = Envelope.acquire(MessageType.SEND);
+      request.set(Envelope.Field.RECIPIENT, contact);
+    }
+    request.set(Envelope.Field.TEXT, text);
+
+    conversations.append(contact, new ChatLine(request.getId(), username, text));
+
+    return request(request);
+  }
+
+  /**
+   * Logs out so the server frees the username straight away. Not retransmitted, nor answered.
+   */
+  public void unregister() {
+    if (token == null) {
+      return;
+    }
+
+    Envelope request = Envelope.acquire(MessageType.UNREGISTER);
+    send(request);
+    request.release();
+
+    token = null;
+  }
+
+  /**
+   * Sends a request, retransmitting it until the server acks it, and releases it.
+   */
+  private CompletableFuture<String> request(Envelope request) {
+    return request(request, new CompletableFuture<>());
+  }
+
+  /**
+   * Sends a request, retransmitting it until the server answers it, and releases it.
+   *
+   * @param future  completed when the server answers, or failed if it never does
+   */
+  private CompletableFuture<String> request(Envelope request, CompletableFuture<String> future) {
+    String id = request.getId();
+    MessageType type = request.getType();
+
+    pending.put(id, future);
+
+    // encoded once, retransmissions resend the same bytes
+    ByteBuffer encoded = encode(request);
+    request.release();
+
+    if (encoded == null) {
+      pending.remove(id);
+      future.completeExceptionally(new IOException("failed to encode " + type.wireName()));
+      return future;
+    }
+
+    byte[] frame = new byte[encoded.remaining()];
+    encoded.get(frame);
+
+    transmit(ByteBuffer.wrap(frame));
+    resend(id, type, frame);
+
+    return future;
+  }
+
+  private void receive() {
+    Fragments.Reassembler reassembler = Fragments.Reassembler.fromProperties();
+    byte[] buffer = new byte[65536];
+
+    // every frame is handled before the next datagram is received, so one envelope serves them all
+    Envelope message = new Envelope();
+
+    while (!socket.isClosed()) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+      try {
+        socket.receive(packet);
+      } catch (IOException e) {
+        if (!socket.isClosed()) {
+          Log.error("failed to receive from socket");
+        }
+        continue;
+      }
+
+      // the server may coalesce several messages into one datagram
+      for (ByteBuffer part : Message.split(ByteBuffer.wrap(buffer, 0, packet.getLength()))) {
+        // large messages arrive in fragments, handled once the last one is in
+        if (Fragments.isFragment(part)) {
+          part = reassembler.offer(packet.getSocketAddress(), part);
+
+          if (part == null) {
+            continue;
+          }
+        }
+
+        if (Compression.isCompressed(part)) {
+          part = Compression.decompress(part);
+
+          if (part == null) {
+            Log.error("invalid message received");
+            continue;
+          }
+        }
+
+        if (!Message.decode(part, message)) {
+          Log.error("invalid message received");
+          continue;
+        }
+
+        try {
+          handle(message);
+        } catch (RuntimeException e) {
+          // a misbehaving listener must not stop the receive loop
+          Log.error("failed to handle " + message.getType().wireName() + ": " + e);
+        }
+      }
+    }
+  }
+
+  private void handle(Envelope message) {
+    if (message.has(Envelope.Field.SEQ)) {
+      boolean fresh;
+
+      try {
+        fresh = acks.receive(message.getLong(Envelope.Field.SEQ));
+      } catch (NumberFormatException e) {
+        Log.error("malformed sequence number received");
+        return;
+      }
+
+      // a retransmission of something already handled only needed acknowledging again
+      if (!fresh) {
+        scheduleAck();
+        return;
+      }
+    }
+
+    switch (message.getType()) {
+      case ACK: {
+        String id = message.get(Envelope.Field.TARGET);
+
+        if (id == null) {
+          break;
+        }
+
+        retransmits.cancel(id);
+
+        // ELAPSED, only known if the request was never retransmitted (Karn's algorithm)
+        Long sent = elapsed.remove(id);
+        if (sent != null) {
+          rtt.sample(System.currentTimeMillis() - sent);
+        }
+
+        conversations.update(id, (m) -> m.setReceivedByServer(true));
+
+        CompletableFuture<String> future = pending.remove(id);
+        if (future != null) {
+          future.complete(id);
+        }
+
+        break;
+      }
+
+      case ERROR: {
+        String text = message.get(Envelope.Field.TEXT);
+
+        CompletableFuture<String> r = registration;
+        if (r != null && r.completeExceptionally(new IOException(text))) {
+          registration = null;
+          answered();
+        }
+
+        for (Listener l : listeners) {
+          l.error(text);
+        }
+        break;
+      }
+
+      case CREDENTIALS: {
+        answered();
+
+        token = message.get(Envelope.Field.TOKEN);
+        if (message.is(Envelope.Field.CODEC, Message.BINARY_VERSION)) {
+          version = Message.BINARY_VERSION;
+        }
+        compressed = message.is(Envelope.Field.COMPRESSION, Compression.NAME);
+
+        // only now that the name is ours is its history opened
+        conversations.open(History.fromProperties(username));
+
+        CompletableFuture<String> r = registration;
+        registration = null;
+        if (r != null) {
+          r.complete(username);
+        }
+
+        for (Listener l : listeners) {
+          l.registered(username);
+        }
+        break;
+      }
+
+      case FORWARD: {
+        // channel posts are not sequenced, and a member whose ack was lost is sent the same post again
+        if (!message.has(Envelope.Field.SEQ)) {
+          if (posts.lookup(message.getId()) != null) {
+            break;
+          }
+          posts.record(message.getId(), DedupWindow.NO_REPLY);
+        }
+
+        // channel posts go to the channel's conversation rather than the sender's
+        String sender = message.get(Envelope.Field.SENDER);
+        String contact = message.has(Envelope.Field.CHANNEL) ? message.get(Envelope.Field.CHANNEL) : sender;
+        conversations.append(contact, new ChatLine(message.getId(), sender, message.get(Envelope.Field.TEXT), true, true));
+        break;
+      }
+
+      case RECEIVED: {
+        if (message.has(Envelope.Field.TARGET)) {
+          conversations.update(message.get(Envelope.Field.TARGET), (m) -> m.setReceivedByClient(true));
+        }
+        break;
+      }
+
+      case FAILED: {
+        // the server gave up delivering one of our messages
+        if (message.has(Envelope.Field.TARGET)) {
+          conversations.update(message.get(Envelope.Field.TARGET), (m) -> m.setFailed(true));
+        }
+        break;
+      }
+
+      default: {
+        Log.error("unknown message received");
+        break;
+      }
+    }
+
+    acknowledge(message);
+  }
+
+  /**
+   * Acknowledges a message from the server. Sequenced messages are covered by the next cumulative ack, anything else
+   * that needs it is acked on its own straight away.
+   */
+  private void acknowledge(Envelope m) {
+    if (m.has(Envelope.Field.SEQ)) {
+      scheduleAck();
+      return;
+    }
+
+    switch (m.getType()) {
+      case CREDENTIALS:
+      case FORWARD:
+      case RECEIVED:
+      case FAILED:
+        break;
+      default:
+        return;
+    }
+
+    Envelope ack = Envelope.acquire(MessageType.ACK);
+    ack.setToId(Envelope.Field.TARGET, m);
+    send(ack);
+    ack.release();
+  }
+
+  /**
+   * Sends a cumulative ack once enough messages are waiting for one, otherwise makes sure one goes out within the
+   * ack delay.
+   */
+  private void scheduleAck() {
+    if (acks.getPending() >= ACK_BATCH) {
+      sendAck();
+    } else if (ackScheduled.compareAndSet(false, true)) {
+      timers.schedule(this::sendAck, ACK_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void sendAck() {
+    ackScheduled.set(false);
+
+    AckTracker a = acks;
+
+    if (a.getPending() == 0) {
+      return;
+    }
+
+    Envelope ack = Envelope.acquire(MessageType.ACK);
+    a.fill(ack);
+    send(ack);
+    ack.release();
+  }
+
+  private void send(Envelope m) {
+    ByteBuffer frame = encode(m);
+
+    if (frame != null) {
+      transmit(frame);
+    }
+  }
+
+  /**
+   * Encodes a message for the server, attaching the token and compressing it if agreed. The frame is in a per-thread
+   * buffer, valid until the next message is encoded on the same thread.
+   *
+   * @return the frame, or null if the message cannot be encoded
+   */
+  private ByteBuffer encode(Envelope m) {
+    // middleware to attach token
+    if (token != null) {
+      m.set(Envelope.Field.TOKEN, token);
+    }
+
+    ByteBuffer frame = Message.encodeFrame(m, version);
+
+    if (frame != null && compressed) {
+      frame = Compression.compress(frame);
+    }
+
+    return frame;
+  }
+
+  private void transmit(ByteBuffer frame) {
+    Fragments.split(frame, Fragments.SIZE, (datagram) -> {
+      DatagramPacket packet = new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(), datagram.remaining(), server);
+
+      try {
+        socket.send(packet);
+      } catch (IOException e) {
+        Log.error("failed to sent packet");
+      }
+    });
+  }
+
+  private void resend(String id, MessageType type, byte[] frame) {
+    elapsed.put(id, System.currentTimeMillis());
+
+    retransmits.schedule(id, rtt.getTimeout(), new RetransmitScheduler.Retransmission() {
+      @Override
+      public void retransmit(int attempt) {
+        elapsed.remove(id);
+        transmit(ByteBuffer.wrap(frame));
+      }
+
+      @Override
+      public void abandon() {
+        CompletableFuture<String> future = pending.remove(id);
+        if (future != null) {
+          future.completeExceptionally(new TimeoutException("no ack for " + type.wireName() + " " + id));
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops retransmitting the outstanding register request, which the server has answered.
+   */
+  private void answered() {
+    String id = registering;
+
+    if (id == null) {
+      return;
+    }
+
+    registering = null;
+    retransmits.cancel(id);
+    pending.remove(id);
+
+    Long sent = elapsed.remove(id);
+    if (sent != null) {
+      rtt.sample(System.currentTimeMillis() - sent);
+    }
+  }
+
+  private void failAll(Throwable cause) {
+    for (String id : pending.keySet()) {
+      CompletableFuture<String> future = pending.remove(id);
+      if (future != null) {
+        future.completeExceptionally(cause);
+      }
+    }
+
+    CompletableFuture<String> r = registration;
+    registration = null;
+    if (r != null) {
+      r.completeExceptionally(cause);
+    }
+  }
+
+  /**
+   * Stops receiving and closes the socket, failing anything still awaiting an answer.
+   */
+  public void close() {
+    unregister();
+    retransmits.cancelAll();
+    timers.shutdownNow();
+    socket.close();
+    failAll(new IOException("client closed"));
+    conversations.open(History.inMemory());
+  }
+}
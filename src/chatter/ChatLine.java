@@ -0,0 +1,75 @@
+package chatter;
+
+/**
+  * ChatLine represents a message in a conversation between two clients. 
+  *
+  * @version     1.0
+  */
+public class ChatLine {
+
+  private String id;
+  private String text;
+  private String sender;
+  private volatile boolean receivedByServer;
+  private volatile boolean receivedByClient;
+  private volatile boolean failed;
+
+  public ChatLine(String id, String sender, String text) {
+    this.id = id;
+    this.sender = sender;
+    this.text = text;
+    this.receivedByServer = false;
+    this.receivedByClient = false;
+  }
+
+  public ChatLine(String id, String sender, String text, boolean receivedByServer, boolean receivedByClient) {
+    this.id = id;
+    this.sender = sender;
+    this.text = text;
+    this.receivedByServer = receivedByServer;
+    this.receivedByClient = receivedByClient;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getSender() {
+    return sender;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public boolean isReceivedByServer() {
+    return receivedByServer;
+  }
+
+  public void setReceivedByServer(boolean receivedByServer) {
+    this.receivedByServer = receivedByServer;
+  }
+
+  public boolean isReceivedByClient() {
+    return receivedByClient;
+  }
+
+  public void setReceivedByClient(boolean receivedByClient) {
+    this.receivedByClient = receivedByClient;
+  }
+
+  public boolean isFailed() {
+    return failed;
+  }
+
+  public void setFailed(boolean failed) {
+    this.failed = failed;
+  }
+
+  /**
+   * Whether the delivery status of the line can no longer change.
+   */
+  public boolean isSettled() {
+    return failed || receivedByClient;
+  }
+}
@@ -0,0 +1,378 @@
+package chatter;
+
+import java.util.Map;
+import java.util.List;
+import java.util.LinkedHashMap;
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+import javax.swing.event.*;
+
+import java.net.SocketException;
+
+/**
+ * Client represents the graphical client program that communicates with a server process via the chatter application-level protocol.
+ *
+ * The protocol itself is run by a ChatClient, which the window subscribes to like any other listener. Events arrive on
+ * the network thread and are handed over to the event dispatch thread, so the network never waits on the window.
+ *
+ * @version     1.0
+ */
+public class Client {
+
+  /**
+   * Lines of the conversation in view kept on the heap.
+   */
+  private static final int VIEW_CACHE = 512;
+
+  private final ChatClient chat;
+  private final Conversations conversations;
+
+  public Client(ChatClient chat) {
+    this.chat = chat;
+    this.conversations = chat.getConversations();
+
+    // initialize window and start graphical user interface
+    Log.info("starting gui application");
+
+    Frame frame = new Frame();
+    conversations.setListener(frame);
+    chat.addListener(frame);
+
+    JFrame window = new JFrame("Chatter");
+    window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+    window.addWindowListener(new WindowAdapter() {
+      @Override
+      public void windowClosing(WindowEvent e) {
+        // log out so the server frees the username straight away
+        Client.this.chat.unregister();
+      }
+    });
+    window.getContentPane().add(frame);
+    window.pack();
+    window.setVisible(true);
+  }
+
+  /**
+   * Frame represents the graphical window along with the various graphical components that make up the user interface.
+   *
+   * @version     1.0
+   */
+  class Frame extends JPanel implements Conversations.Listener, ChatClient.Listener {
+    
+    private JLabel title;
+    private JLabel username;
+    private JTextField registerInput;
+    private JButton registerButton;
+    private JList<String> contactList;
+    private JTextField addContactInput;
+    private JButton addContactButton;
+    private JList<ChatLine> conversationList;
+    private JTextField sendMessageInput;
+    private JButton sendMessageButton;
+
+    private ConversationModel conversation = new ConversationModel(null);
+
+    public Frame() {
+      setPreferredSize(new Dimension(550, 340));
+      setLayout(null);
+
+      // create title
+      title = new JLabel("Chatter", JLabel.CENTER);
+      title.setFont(new Font("Verdana", Font.PLAIN, 20));
+
+      username = new JLabel("", JLabel.CENTER);
+      username.setFont(new Font("Verdana", Font.PLAIN, 14));
+      username.setVisible(false);
+
+      // create register text field and button
+      registerInput = new JTextField();
+      registerButton = new JButton("reg");
+      registerButton.addActionListener(new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent event) {
+          // skip if there is no username
+          if (registerInput.getText().equals("")) {
+            return;
+          }
+
+          // the outcome is shown through registered() and error()
+          Client.this.chat.register(registerInput.getText());
+
+          // clear register input
+          registerInput.setText("");
+        }
+      });
+      
+      // create contact list with scrollbar
+      JScrollPane contactListScroll = new JScrollPane();
+      contactList = new JList<>();
+      contactListScroll.setViewportView(contactList);
+      contactList.addListSelectionListener(new ListSelectionListener() {
+        public void valueChanged(ListSelectionEvent listSelectionEvent) {
+          // allow user to select conversation by username
+          refreshConversations();
+        }
+      });
+
+      // add contact
+      addContactInput = new JTextField();
+      addContactButton = new JButton("add");
+      addContactButton.addActionListener(new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+          if (addContactInput.getText().equals("") || Client.this.conversations.contains(addContactInput.getText())) {
+            return;
+          }
+
+          // contacts starting with # are channels, which the client joins
+          String contact = addContactInput.getText();
+          Client.this.chat.addContact(contact).whenComplete((c, failure) -> {
+            if (failure != null) {
+              SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Could not join " + contact + ".", "Error", JOptionPane.INFORMATION_MESSAGE));
+            }
+          });
+
+          addContactInput.setText("");
+        }
+      });
+
+      // conversation area, a list of fixed size cells so that only the lines in view are ever read or drawn
+      conversationList = new JList<>(conversation);
+      conversationList.setFixedCellWidth(330);
+      conversationList.setFixedCellHeight(conversationList.getFontMetrics(conversationList.getFont()).getHeight() + 2);
+      conversationList.setCellRenderer(new DefaultListCellRenderer() {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+          String text = format((ChatLine) value);
+          super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+          setToolTipText(text);
+          return this;
+        }
+      });
+
+      JScrollPane conversationAreaScroll = new JScrollPane();
+      conversationAreaScroll.setViewportView(conversationList);
+
+      // send
+      sendMessageInput = new JTextField();
+      sendMessageButton = new JButton("snd");
+      sendMessageButton.addActionListener(new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent event) {
+          if (sendMessageInput.getText().equals("") || contactList.getSelectedValuesList().isEmpty()) {
+            return;
+          }
+
+          // delivery state shows in the conversation as it changes
+          Client.this.chat.send(contactList.getSelectedValuesList().get(0), sendMessageInput.getText());
+
+          sendMessageInput.setText("");
+        }
+      });
+
+      add(title);
+      add(username);
+      add(registerInput);
+      add(registerButton);
+      add(contactListScroll);
+      add(addContactInput);
+      add(addContactButton);
+      add(conversationAreaScroll);
+      add(sendMessageInput);
+      add(sendMessageButton);
+
+      // set component bounds
+      title.setBounds                  (10,  10,  230, 25);
+      username.setBounds               (270, 10,  200, 25);
+      registerInput.setBounds          (270, 10,  200, 25);
+      registerButton.setBounds         (480, 10,  60,  25);
+      contactListScroll.setBounds      (10,  45,  170, 250);
+      addContactInput.setBounds        (10,  305, 100, 25);
+      addContactButton.setBounds       (120, 305, 60,  25);
+      conversationAreaScroll.setBounds (190, 45,  350, 250);
+      sendMessageInput.setBounds       (190, 305, 280, 25);
+      sendMessageButton.setBounds      (480, 305, 60,  25);
+    }
+
+    public void refreshContactsList() {
+      DefaultListModel<String> model = new DefaultListModel<>();
+      List<String> list = Client.this.conversations.contacts();
+      for (int i = 0; i < list.size(); i++) {
+        model.add(i, list.get(i));
+      }
+      contactList.setModel(model);
+    }
+
+    /**
+     * Shows the selected conversation, scrolled to its latest line.
+     */
+    public void refreshConversations() {
+      conversation = new ConversationModel(contactList.getSelectedValuesList().size() > 0 ? contactList.getSelectedValuesList().get(0) : null);
+      conversationList.setModel(conversation);
+
+      if (conversation.getSize() > 0) {
+        conversationList.ensureIndexIsVisible(conversation.getSize() - 1);
+      }
+    }
+
+    private String format(ChatLine m) {
+      return "(" + (m.isFailed() ? "!!" : (m.isReceivedByServer() ? "*" : "?") + (m.isReceivedByClient() ? "*" : "?")) + ") " + "[" + m.getSender() + "] " + m.getText();
+    }
+
+    // the store reports changes from whichever thread made them, apply them on the event dispatch thread
+
+    @Override
+    public void added(String contact) {
+      SwingUtilities.invokeLater(this::refreshContactsList);
+    }
+
+    @Override
+    public void appended(String contact, int index, ChatLine line) {
+      SwingUtilities.invokeLater(() -> {
+        if (!contact.equals(conversation.getContact())) {
+          return;
+        }
+
+        // follow new lines only when already at the latest one
+        boolean following = conversationList.getLastVisibleIndex() >= conversation.getSize() - 1;
+
+        conversation.appended(index, line);
+
+        if (following) {
+          conversationList.ensureIndexIsVisible(index);
+        }
+      });
+    }
+
+    @Override
+    public void updated(String contact, int index, ChatLine line) {
+      SwingUtilities.invokeLater(() -> {
+        if (contact.equals(conversation.getContact())) {
+          conversation.updated(index, line);
+        }
+      });
+    }
+
+    @Override
+    public void cleared() {
+      SwingUtilities.invokeLater(() -> {
+        refreshContactsList();
+        refreshConversations();
+      });
+    }
+
+    @Override
+    public void registered(String name) {
+      SwingUtilities.invokeLater(() -> {
+        registerInput.setVisible(false);
+        registerButton.setVisible(false);
+        username.setText("Logged in as: " + name);
+        username.setVisible(true);
+
+        JOptionPane.showMessageDialog(null, "Registration successful.", "Info", JOptionPane.INFORMATION_MESSAGE);
+      });
+    }
+
+    @Override
+    public void error(String text) {
+      SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, text, "Error", JOptionPane.INFORMATION_MESSAGE));
+    }
+  }
+
+  /**
+   * ConversationModel presents one conversation to a list, reading its lines from the store only when the list asks
+   * for them, which for a list of fixed size cells is only the lines in view. Recently read lines are cached.
+   *
+   * @version     1.0
+   */
+  class ConversationModel extends AbstractListModel<ChatLine> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String contact;
+    private int size;
+    private final transient Map<Integer, ChatLine> cache = new LinkedHashMap<Integer, ChatLine>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, ChatLine> eldest) {
+        return size() > VIEW_CACHE;
+      }
+    };
+
+    /**
+     * @param contact  conversation to present, or null for none
+     */
+    public ConversationModel(String contact) {
+      this.contact = contact;
+      this.size = contact == null ? 0 : Client.this.conversations.size(contact);
+    }
+
+    public String getContact() {
+      return contact;
+    }
+
+    @Override
+    public int getSize() {
+      return size;
+    }
+
+    @Override
+    public ChatLine getElementAt(int index) {
+      ChatLine line = cache.get(index);
+
+      if (line == null) {
+        line = Client.this.conversations.line(contact, index);
+
+        if (line == null) {
+          return new ChatLine(null, "", "");
+        }
+
+        cache.put(index, line);
+      }
+
+      return line;
+    }
+
+    /**
+     * Takes in a line appended to the conversation. Lines already counted when the model was created are skipped.
+     */
+    public void appended(int index, ChatLine line) {
+      if (index < size) {
+        return;
+      }
+
+      int from = size;
+      size = index + 1;
+      cache.put(index, line);
+      fireIntervalAdded(this, from, index);
+    }
+
+    public void updated(int index, ChatLine line) {
+      if (index >= size) {
+        return;
+      }
+
+      cache.put(index, line);
+      fireContentsChanged(this, index, index);
+    }
+  }
+
+  public static void main (String[] args) {
+    ChatClient chat;
+
+    // bind to local ephemeral port
+    Log.info("binding socket to ephemeral port");
+
+    try {
+      chat = ChatClient.fromProperties();
+    } catch (SocketException e) {
+      Log.error("failed to bind socket to local ephemeral port");
+      return;
+    }
+
+    chat.start();
+
+    SwingUtilities.invokeLater(() -> new Client(chat));
+  }
+}
@@ -0,0 +1,153 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression deflates frames against a preset dictionary of the field names and phrases every frame repeats, so that
+ * even short messages shrink and more text fits in a single datagram.
+ *
+ * Compressed frame layout:
+ *
+ *   u8   compression marker (5)
+ *   u32  length of the frame once inflated
+ *   ...  the frame, raw deflate against DICTIONARY
+ *
+ * Compression is offered by the client at register with compression:deflate and confirmed by the server echoing it in
+ * the credentials. Only frames above a size threshold are compressed, and only when that makes them smaller. The hash
+ * covers the uncompressed frame and is checked once it has been inflated.
+ *
+ * @version     1.0
+ */
+public final class Compression {
+
+  public static final byte MARKER = 5;
+  public static final int OVERHEAD = 5;
+
+  /**
+   * Name the compression is negotiated under.
+   */
+  public static final String NAME = "deflate";
+
+  /**
+   * Smallest frame compressed, set with the chatter.compress.threshold system property. Smaller frames go out as is.
+   */
+  public static final int THRESHOLD = Integer.getInteger("chatter.compress.threshold", 256);
+
+  // largest frame inflated, the same as the largest frame the codecs produce
+  private static final int MAX_FRAME = 65536;
+
+  /*
+   * Deflate finds matches nearer the end of the dictionary with shorter distances, so the most common strings go last.
+   * Changing the dictionary breaks compatibility with peers using the old one; negotiate a new name instead.
+   */
+  private static final byte[] DICTIONARY = (
+      "Delivery failed.Invalid recipient.Not a member of channel.Username already in use."
+    + " the and you that have for not with this but what are just your can about know will was like there"
+    + " yes no ok okay thanks thank you sorry please hello hi hey see you later tomorrow today tonight now"
+    + "type:unregister\r\ntype:heartbeat\r\ntype:register\r\ntype:credentials\r\ntype:failed\r\ntype:received\r\n"
+    + "type:join\r\ntype:leave\r\ntype:post\r\ntype:error\r\ntype:send\r\ntype:forward\r\ntype:ack\r\n"
+    + "codec:2.0\r\ncompression:deflate\r\nusername:channel:#cumulative:sack:seq:recipient:sender:target:"
+    + "\r\ntoken:\r\ntext:\r\nid:\r\nhash:CHATTER/1.0\r\n"
+    ).getBytes(StandardCharsets.UTF_8);
+
+  private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+  private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+  private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(OVERHEAD + MAX_FRAME));
+
+  private static final Metrics.Counter COMPRESSED = Metrics.counter("compression.frames");
+  private static final Metrics.Counter SAVED = Metrics.counter("compression.bytes.saved");
+
+  private Compression() {}
+
+  public static boolean isCompressed(ByteBuffer frame) {
+    return frame.remaining() > OVERHEAD && frame.get(frame.position()) == MARKER;
+  }
+
+  /**
+   * Compresses the frame between the buffer's position and limit, which is left unchanged. Compressed frames are
+   * written into a per-thread buffer which is only valid until the next call on the same thread.
+   *
+   * @return the compressed frame, or the frame itself if it is below the threshold or does not get any smaller
+   */
+  public static ByteBuffer compress(ByteBuffer frame) {
+    int length = frame.remaining();
+
+    if (length < THRESHOLD || length > MAX_FRAME) {
+      return frame;
+    }
+
+    Deflater deflater = DEFLATERS.get();
+    deflater.reset();
+    deflater.setDictionary(DICTIONARY);
+    deflater.setInput(frame.duplicate());
+    deflater.finish();
+
+    ByteBuffer out = BUFFERS.get();
+    out.clear();
+    out.put(MARKER);
+    out.putInt(length);
+
+    // anything that would not end up smaller is not worth compressing, so stop as soon as it fills the original size
+    out.limit(length);
+
+    while (!deflater.finished() && out.hasRemaining()) {
+      deflater.deflate(out);
+    }
+
+    if (!deflater.finished()) {
+      return frame;
+    }
+
+    out.flip();
+
+    COMPRESSED.increment();
+    SAVED.add(length - out.remaining());
+
+    return out;
+  }
+
+  /**
+   * Inflates a compressed frame.
+   *
+   * @return the original frame in a buffer of its own, or null if the frame is malformed
+   */
+  public static ByteBuffer decompress(ByteBuffer frame) {
+    int length = frame.getInt(frame.position() + 1);
+
+    if (length <= 0 || length > MAX_FRAME) {
+      return null;
+    }
+
+    ByteBuffer input = frame.duplicate();
+    input.position(frame.position() + OVERHEAD);
+
+    Inflater inflater = INFLATERS.get();
+    inflater.reset();
+    inflater.setDictionary(DICTIONARY);
+    inflater.setInput(input);
+
+    // one spare byte, so that a frame inflating to more than it claims is caught rather than cut short
+    ByteBuffer out = ByteBuffer.allocate(length + 1);
+
+    try {
+      while (!inflater.finished()) {
+        if (!out.hasRemaining() || (inflater.inflate(out) == 0 && (inflater.needsInput() || inflater.needsDictionary()))) {
+          return null;
+        }
+      }
+    } catch (DataFormatException e) {
+      return null;
+    }
+
+    if (out.position() != length) {
+      return null;
+    }
+
+    out.flip();
+    return out;
+  }
+}
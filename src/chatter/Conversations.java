@@ -0,0 +1,194 @@
+package chatter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Conversations holds the client's conversations, each an append-only list of lines kept in a History, along with an
+ * index from message id to line for the lines whose delivery status may still change, so that acks and receipts find
+ * their line without scanning for it.
+ *
+ * The store is written from the network thread and the UI thread alike. Every change is reported to a listener with
+ * the position of the line it touched, from the thread making the change, so that a view can apply it incrementally
+ * and read only the lines it shows.
+ *
+ * @version     1.0
+ */
+public class Conversations {
+
+  /**
+   * Listener is told about every change to the store, in the order the changes were made.
+   */
+  public interface Listener {
+    void added(String contact);
+
+    void appended(String contact, int index, ChatLine line);
+
+    void updated(String contact, int index, ChatLine line);
+
+    /**
+     * Everything in the store has been replaced.
+     */
+    void cleared();
+  }
+
+  // lines whose status may still change, beyond which the oldest are forgotten since channel posts, for one, are
+  // never receipted
+  private static final int MAX_PENDING = 4096;
+
+  private History history = History.inMemory();
+  private final Map<String, Position> pending = new LinkedHashMap<String, Position>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Position> eldest) {
+      return size() > MAX_PENDING;
+    }
+  };
+  private volatile Listener listener;
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Replaces the conversations with those of another history, closing the current one.
+   */
+  public void open(History history) {
+    History previous;
+
+    synchronized (this) {
+      previous = this.history;
+      this.history = history;
+      pending.clear();
+
+      Listener l = listener;
+      if (l != null) {
+        l.cleared();
+      }
+    }
+
+    previous.close();
+  }
+
+  /**
+   * Starts an empty conversation with a contact.
+   *
+   * @return false if there already is one, or it could not be started
+   */
+  public synchronized boolean add(String contact) {
+    try {
+      if (!history.create(contact)) {
+        return false;
+      }
+    } catch (IOException e) {
+      Log.error("failed to start conversation with " + contact + ": " + e.getMessage());
+      return false;
+    }
+
+    Listener l = listener;
+    if (l != null) {
+      l.added(contact);
+    }
+
+    return true;
+  }
+
+  public synchronized boolean contains(String contact) {
+    return history.contains(contact);
+  }
+
+  /**
+   * Contacts with a conversation, in order of name.
+   */
+  public synchronized List<String> contacts() {
+    return history.contacts();
+  }
+
+  /**
+   * Appends a line to the conversation with a contact, starting the conversation if there is none yet.
+   *
+   * @return position of the line in the conversation, or -1 if it could not be stored
+   */
+  public synchronized int append(String contact, ChatLine line) {
+    add(contact);
+
+    int i;
+
+    try {
+      i = history.append(contact, line);
+    } catch (IOException e) {
+      Log.error("failed to store line in conversation with " + contact + ": " + e.getMessage());
+      return -1;
+    }
+
+    if (line.getId() != null && !line.isSettled()) {
+      pending.put(line.getId(), new Position(contact, i));
+    }
+
+    Listener l = listener;
+    if (l != null) {
+      l.appended(contact, i, line);
+    }
+
+    return i;
+  }
+
+  /**
+   * Reads a line of a conversation.
+   *
+   * @return the line, or null if there is no such line
+   */
+  public synchronized ChatLine line(String contact, int index) {
+    return history.read(contact, index);
+  }
+
+  public synchronized int size(String contact) {
+    return history.size(contact);
+  }
+
+  /**
+   * Changes the status of the line of the message with the given id.
+   *
+   * @return false if there is no such line, or its status can no longer change
+   */
+  public synchronized boolean update(String id, Consumer<ChatLine> change) {
+    Position p = pending.get(id);
+
+    if (p == null) {
+      return false;
+    }
+
+    ChatLine line = history.read(p.contact, p.index);
+
+    if (line == null) {
+      pending.remove(id);
+      return false;
+    }
+
+    change.accept(line);
+    history.update(p.contact, p.index, line);
+
+    if (line.isSettled()) {
+      pending.remove(id);
+    }
+
+    Listener l = listener;
+    if (l != null) {
+      l.updated(p.contact, p.index, line);
+    }
+
+    return true;
+  }
+
+  private static class Position {
+    final String contact;
+    final int index;
+
+    Position(String contact, int index) {
+      this.contact = contact;
+      this.index = index;
+    }
+  }
+}
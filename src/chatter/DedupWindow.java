@@ -0,0 +1,87 @@
+package chatter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DedupWindow remembers the most recent requests from one client together with the reply each one got, so that a
+ * request retransmitted because its reply was lost can be answered again without being executed a second time.
+ *
+ * Ids are kept in a fixed size ring, the oldest being forgotten as new ones arrive, and an id older than the time to
+ * live is treated as unseen. A window belongs to a single session and is only used from that session's shard, so it
+ * is not synchronized.
+ *
+ * @version     1.0
+ */
+public class DedupWindow {
+
+  /**
+   * Stands in for the reply of a request which was answered with nothing.
+   */
+  public static final byte[] NO_REPLY = new byte[0];
+
+  private final long ttl;  // ms
+
+  private final String[] ids;
+  private final byte[][] replies;
+  private final long[] seen;
+  private final Map<String, Integer> index;
+  private int next = 0;
+
+  public DedupWindow(int capacity, long ttl) {
+    this.ttl = ttl;
+    this.ids = new String[capacity];
+    this.replies = new byte[capacity][];
+    this.seen = new long[capacity];
+    this.index = new HashMap<>(capacity * 2);
+  }
+
+  /**
+   * Creates a window configured from the chatter.dedup.window and chatter.dedup.ttl system properties.
+   */
+  public static DedupWindow fromProperties() {
+    return new DedupWindow(Math.max(1, Integer.getInteger("chatter.dedup.window", 64)), Long.getLong("chatter.dedup.ttl", 300000));
+  }
+
+  /**
+   * Looks up a request id.
+   *
+   * @return the encoded reply the request got, NO_REPLY if it got none, or null if it has not been seen recently
+   */
+  public byte[] lookup(String id) {
+    Integer slot = index.get(id);
+
+    if (slot == null || System.currentTimeMillis() - seen[slot] >= ttl) {
+      return null;
+    }
+
+    return replies[slot];
+  }
+
+  /**
+   * Remembers a request and its reply, forgetting the oldest request if the window is full.
+   *
+   * @param reply  encoded reply, or NO_REPLY
+   */
+  public void record(String id, byte[] reply) {
+    Integer existing = index.get(id);
+    int slot = existing != null ? existing : next;
+
+    if (existing == null) {
+      if (ids[slot] != null) {
+        index.remove(ids[slot]);
+      }
+
+      ids[slot] = id;
+      index.put(id, slot);
+      next = (next + 1) % ids.length;
+    }
+
+    replies[slot] = reply;
+    seen[slot] = System.currentTimeMillis();
+  }
+
+  public int size() {
+    return index.size();
+  }
+}
@@ -0,0 +1,438 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Envelope is a message held as typed slots rather than a map, recycled through a per-thread pool so that handling a
+ * request in steady state produces next to no garbage.
+ *
+ * A decoded envelope does not copy its fields out of the frame: each slot is a view of the bytes it was decoded from,
+ * and a hex id is packed into two longs. A field only becomes a String when it is asked for, and is then cached in the
+ * slot. The frame must therefore outlive the envelope, and anything kept beyond handling the frame must be taken out
+ * as a String first.
+ *
+ * Envelopes are acquired and released on the same thread, each thread keeping its own pool, so the pool needs no
+ * locking. An envelope must not be used after it has been released.
+ *
+ * @version     1.0
+ */
+public class Envelope {
+
+  /**
+   * Fields with a slot of their own. The tag of a field in binary frames is its ordinal plus one, so new fields must
+   * only ever be appended, in step with the tags of Message.
+   */
+  public enum Field {
+    TOKEN,
+    TARGET,
+    USERNAME,
+    RECIPIENT,
+    SENDER,
+    TEXT,
+    CODEC,
+    CHANNEL,
+    SEQ,
+    CUMULATIVE,
+    SACK,
+    COMPRESSION;
+
+    private static final Field[] VALUES = values();
+
+    private final String key = name().toLowerCase();
+
+    /**
+     * Key of the field in text frames.
+     */
+    public String key() {
+      return key;
+    }
+
+    public int tag() {
+      return ordinal() + 1;
+    }
+
+    public static Field fromTag(int tag) {
+      return tag > 0 && tag <= VALUES.length ? VALUES[tag - 1] : null;
+    }
+
+    public static Field fromKey(String key) {
+      for (Field f : VALUES) {
+        if (f.key.equals(key)) {
+          return f;
+        }
+      }
+      return null;
+    }
+  }
+
+  // what a slot holds
+  static final byte ABSENT = 0;
+  static final byte VIEW = 1;    // UTF-8 bytes of the source frame
+  static final byte PACKED = 2;  // hex id packed into two longs
+  static final byte STRING = 3;
+  static final byte NUMBER = 4;
+
+  private static final int FIELDS = Field.VALUES.length;
+
+  // envelopes kept per thread, beyond which released ones are left to the garbage collector
+  private static final int POOL_SIZE = 64;
+
+  private static final ThreadLocal<ArrayDeque<Envelope>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+  private static final Metrics.Counter ALLOCATED = Metrics.counter("message.envelopes.allocated");
+
+  private MessageType type;
+  private String version = Message.VERSION;
+
+  private boolean hasId;
+  private long idHigh;
+  private long idLow;
+  private String id;  // cached, or the id itself if it is not hex
+
+  private ByteBuffer source;
+  private final byte[] kinds = new byte[FIELDS];
+  private final int[] offsets = new int[FIELDS];
+  private final int[] lengths = new int[FIELDS];
+  private final long[] highs = new long[FIELDS];  // packed ids, numbers
+  private final long[] lows = new long[FIELDS];
+  private final String[] strings = new String[FIELDS];  // set, or cached once asked for
+
+  private boolean released;
+
+  /**
+   * Takes an empty envelope from the calling thread's pool.
+   */
+  public static Envelope acquire() {
+    Envelope e = POOL.get().poll();
+
+    if (e == null) {
+      ALLOCATED.increment();
+      e = new Envelope();
+    }
+
+    e.released = false;
+    return e;
+  }
+
+  /**
+   * Takes an envelope from the calling thread's pool for a new message of the given type, under a fresh id.
+   */
+  public static Envelope acquire(MessageType type) {
+    Envelope e = acquire();
+    e.type = type;
+    e.newId();
+    return e;
+  }
+
+  /**
+   * Clears the envelope and returns it to the calling thread's pool.
+   */
+  public void release() {
+    if (released) {
+      return;
+    }
+
+    clear();
+    released = true;
+
+    ArrayDeque<Envelope> pool = POOL.get();
+    if (pool.size() < POOL_SIZE) {
+      pool.push(this);
+    }
+  }
+
+  public void clear() {
+    type = null;
+    version = Message.VERSION;
+    hasId = false;
+    id = null;
+    source = null;
+
+    for (int i = 0; i < FIELDS; i++) {
+      kinds[i] = ABSENT;
+      strings[i] = null;
+    }
+  }
+
+  public MessageType getType() {
+    return type;
+  }
+
+  public void setType(MessageType type) {
+    this.type = type;
+  }
+
+  /**
+   * Protocol version the message was received in.
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  void setVersion(String version) {
+    this.version = version;
+  }
+
+  /**
+   * Frame the views of a decoded message point into.
+   */
+  void setSource(ByteBuffer source) {
+    this.source = source;
+  }
+
+  public boolean hasId() {
+    return hasId || id != null;
+  }
+
+  public String getId() {
+    if (id == null && hasId) {
+      id = Hashing.toHex(idHigh, idLow);
+    }
+    return id;
+  }
+
+  public void setId(String id) {
+    this.hasId = false;
+    this.id = id;
+  }
+
+  void setId(long high, long low) {
+    this.hasId = true;
+    this.idHigh = high;
+    this.idLow = low;
+    this.id = null;
+  }
+
+  /**
+   * Gives the message a random id. Ids only have to be unique, so they come from a fast generator rather than the
+   * secure one used for tokens.
+   */
+  public void newId() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    setId(random.nextLong(), random.nextLong());
+  }
+
+  /**
+   * Whether the id is packed, in which case idHigh and idLow hold it.
+   */
+  boolean isPackedId() {
+    return hasId;
+  }
+
+  long idHigh() {
+    return idHigh;
+  }
+
+  long idLow() {
+    return idLow;
+  }
+
+  public boolean has(Field f) {
+    return kinds[f.ordinal()] != ABSENT;
+  }
+
+  /**
+   * Value of a field, made into a String on first use.
+   *
+   * @return the value, or null if the field is absent
+   */
+  public String get(Field f) {
+    int i = f.ordinal();
+
+    if (strings[i] != null || kinds[i] == ABSENT) {
+      return strings[i];
+    }
+
+    switch (kinds[i]) {
+      case VIEW:
+        strings[i] = utf8(source, offsets[i], lengths[i]);
+        break;
+      case PACKED:
+        strings[i] = Hashing.toHex(highs[i], lows[i]);
+        break;
+      case NUMBER:
+        strings[i] = Long.toString(highs[i]);
+        break;
+      default:
+        break;
+    }
+
+    return strings[i];
+  }
+
+  /**
+   * Value of a numeric field, parsed in place.
+   *
+   * @throws NumberFormatException if the field is absent or not a number
+   */
+  public long getLong(Field f) {
+    int i = f.ordinal();
+
+    switch (kinds[i]) {
+      case NUMBER:
+        return highs[i];
+
+      case VIEW: {
+        int length = lengths[i];
+
+        if (length == 0 || length > 18) {
+          throw new NumberFormatException("malformed " + f.key());
+        }
+
+        long value = 0;
+
+        for (int p = offsets[i]; p < offsets[i] + length; p++) {
+          int digit = source.get(p) - '0';
+
+          if (digit < 0 || digit > 9) {
+            throw new NumberFormatException("malformed " + f.key());
+          }
+
+          value = value * 10 + digit;
+        }
+
+        return value;
+      }
+
+      case STRING:
+        return Long.parseLong(strings[i]);
+
+      default:
+        throw new NumberFormatException("missing " + f.key());
+    }
+  }
+
+  /**
+   * Whether a field holds the given ASCII value, compared in place.
+   */
+  public boolean is(Field f, String value) {
+    int i = f.ordinal();
+
+    if (kinds[i] != VIEW) {
+      return value.equals(get(f));
+    }
+
+    if (lengths[i] != value.length()) {
+      return false;
+    }
+
+    for (int k = 0; k < lengths[i]; k++) {
+      if (source.get(offsets[i] + k) != value.charAt(k)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Sets a field, or clears it if the value is null.
+   */
+  public void set(Field f, String value) {
+    int i = f.ordinal();
+    kinds[i] = value == null ? ABSENT : STRING;
+    strings[i] = value;
+  }
+
+  public void set(Field f, long value) {
+    int i = f.ordinal();
+    kinds[i] = NUMBER;
+    highs[i] = value;
+    strings[i] = null;
+  }
+
+  /**
+   * Sets a field to the id of another message without making it a String, as when acking or answering it.
+   */
+  public void setToId(Field f, Envelope m) {
+    if (m.hasId) {
+      set(f, m.idHigh, m.idLow);
+    } else {
+      set(f, m.id);
+    }
+  }
+
+  void set(Field f, long high, long low) {
+    int i = f.ordinal();
+    kinds[i] = PACKED;
+    highs[i] = high;
+    lows[i] = low;
+    strings[i] = null;
+  }
+
+  void view(Field f, int offset, int length) {
+    int i = f.ordinal();
+    kinds[i] = VIEW;
+    offsets[i] = offset;
+    lengths[i] = length;
+    strings[i] = null;
+  }
+
+  byte kind(Field f) {
+    return kinds[f.ordinal()];
+  }
+
+  int offset(Field f) {
+    return offsets[f.ordinal()];
+  }
+
+  int length(Field f) {
+    return lengths[f.ordinal()];
+  }
+
+  long high(Field f) {
+    return highs[f.ordinal()];
+  }
+
+  long low(Field f) {
+    return lows[f.ordinal()];
+  }
+
+  ByteBuffer source() {
+    return source;
+  }
+
+  /**
+   * The message as a map, for text frames and logging.
+   */
+  public Map<String, String> toMap() {
+    Map<String, String> map = new HashMap<>();
+
+    if (type != null) {
+      map.put("type", type.wireName());
+    }
+
+    if (hasId()) {
+      map.put("id", getId());
+    }
+
+    for (Field f : Field.VALUES) {
+      if (has(f)) {
+        map.put(f.key(), get(f));
+      }
+    }
+
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+
+  private static String utf8(ByteBuffer buffer, int offset, int length) {
+    if (buffer.hasArray()) {
+      return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+    }
+
+    byte[] bytes = new byte[length];
+    for (int k = 0; k < length; k++) {
+      bytes[k] = buffer.get(offset + k);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
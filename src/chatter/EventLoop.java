@@ -0,0 +1,137 @@
+package chatter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLoop runs tasks one at a time, in submission order, on a single thread of its own, so that whatever state the
+ * tasks touch is only ever mutated by that thread.
+ *
+ * Received requests are admitted through a bound on the backlog and dropped and counted once it is reached, exactly as
+ * a saturated request queue would. Tasks handed over from other loops are never dropped, since they carry work that
+ * has already been accepted. Tasks submitted from the loop's own thread run immediately.
+ *
+ * @version     1.0
+ */
+public class EventLoop {
+
+  private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+  private final int capacity;
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger backlog = new AtomicInteger();
+  private final Thread thread;
+
+  private final AtomicLong dispatched = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param capacity  received requests allowed to wait before new ones are dropped
+   */
+  public EventLoop(String name, int capacity) {
+    this.capacity = capacity;
+    this.thread = new Thread(this::loop, name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Submits a received request.
+   *
+   * @return false if the request was dropped because the loop is saturated
+   */
+  public boolean dispatch(Runnable task) {
+    if (backlog.incrementAndGet() > capacity) {
+      backlog.decrementAndGet();
+      return drop();
+    }
+
+    tasks.offer(() -> {
+      backlog.decrementAndGet();
+      task.run();
+    });
+    LockSupport.unpark(thread);
+
+    dispatched.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Runs a task on this loop, immediately if called from the loop itself.
+   */
+  public void execute(Runnable task) {
+    if (CURRENT.get() == this) {
+      task.run();
+      return;
+    }
+
+    tasks.offer(task);
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Runs a task on the calling thread as if it were this loop's own, so that anything it submits back to this loop
+   * runs inline. Only safe while the loop itself is idle, as when requests are driven by hand.
+   */
+  public void runAs(Runnable task) {
+    EventLoop previous = CURRENT.get();
+    CURRENT.set(this);
+
+    try {
+      task.run();
+    } finally {
+      CURRENT.set(previous);
+    }
+  }
+
+  public boolean inLoop() {
+    return CURRENT.get() == this;
+  }
+
+  private void loop() {
+    CURRENT.set(this);
+
+    while (true) {
+      Runnable task = tasks.poll();
+
+      if (task == null) {
+        LockSupport.park(this);
+        continue;
+      }
+
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        Log.error(thread.getName() + " task failed: " + e);
+      }
+    }
+  }
+
+  private boolean drop() {
+    long n = dropped.incrementAndGet();
+
+    // report the first drop and then every thousandth, so a burst of drops does not also flood the console
+    if (n % 1000 == 1) {
+      Log.warn(thread.getName() + " saturated, dropped " + n + " requests so far");
+    }
+
+    return false;
+  }
+
+  public long getDispatched() {
+    return dispatched.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Number of received requests accepted but not yet picked up.
+   */
+  public int getQueueDepth() {
+    return backlog.get();
+  }
+}
@@ -0,0 +1,255 @@
+package chatter;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Fragments splits frames too large for one datagram into numbered fragments and puts them back together on arrival.
+ *
+ * Fragment layout:
+ *
+ *   u8   fragment marker (4)
+ *   u32  group, chosen at random by the sender for each frame it splits
+ *   u16  index of this fragment
+ *   u16  number of fragments in the group
+ *   ...  the next piece of the frame
+ *
+ * Fragments carry no hash of their own; the reassembled frame is checked as usual once it is complete. Losing any
+ * fragment loses the frame, which the sender's retransmission then sends again whole under a new group.
+ *
+ * @version     1.0
+ */
+public final class Fragments {
+
+  public static final byte MARKER = 4;
+  public static final int OVERHEAD = 9;
+
+  /**
+   * Largest datagram sent, set with the chatter.fragment.size system property. Frames up to this size go out whole.
+   */
+  public static final int SIZE = Math.max(OVERHEAD + 1, Integer.getInteger("chatter.fragment.size", 1400));
+
+  /**
+   * Most fragments one frame may be split into, which also caps the size of a reassembled frame.
+   */
+  public static final int MAX_FRAGMENTS = 128;
+
+  private Fragments() {}
+
+  public static boolean isFragment(ByteBuffer datagram) {
+    return datagram.remaining() > OVERHEAD && datagram.get(datagram.position()) == MARKER;
+  }
+
+  /**
+   * Hands the frame to the sink as is if it fits in one datagram, otherwise one fragment at a time. Each fragment is
+   * written into the same scratch buffer, which the sink must be done with before it returns.
+   *
+   * @return false if the frame is too large to be fragmented
+   */
+  public static boolean split(ByteBuffer frame, int size, Consumer<ByteBuffer> sink) {
+    if (frame.remaining() <= size) {
+      sink.accept(frame);
+      return true;
+    }
+
+    int payload = size - OVERHEAD;
+    int count = (frame.remaining() + payload - 1) / payload;
+
+    if (count > MAX_FRAGMENTS) {
+      Log.warn("dropping frame of " + frame.remaining() + " bytes, too large to fragment");
+      return false;
+    }
+
+    int group = ThreadLocalRandom.current().nextInt();
+    ByteBuffer scratch = ByteBuffer.allocate(size);
+    ByteBuffer piece = frame.duplicate();
+
+    for (int i = 0; i < count; i++) {
+      int start = frame.position() + i * payload;
+      piece.limit(Math.min(start + payload, frame.limit())).position(start);
+
+      scratch.clear();
+      scratch.put(MARKER);
+      scratch.putInt(group);
+      scratch.putShort((short) i);
+      scratch.putShort((short) count);
+      scratch.put(piece);
+      scratch.flip();
+
+      sink.accept(scratch);
+    }
+
+    return true;
+  }
+
+  /**
+   * Reassembler collects fragments until their frame is complete.
+   *
+   * Partly received frames are bounded in number of bytes held and expire after a timeout, the oldest being given up
+   * first when room is needed. A reassembler is used from a single thread and is not synchronized.
+   */
+  public static class Reassembler {
+    private final long maxBytes;
+    private final long timeout;  // ms
+
+    private final LinkedHashMap<Key, Partial> partials = new LinkedHashMap<>();
+    private long bytes = 0;
+
+    private final Metrics.Counter reassembled = Metrics.counter("fragments.reassembled");
+    private final Metrics.Counter dropped = Metrics.counter("fragments.dropped");
+
+    public Reassembler(long maxBytes, long timeout) {
+      this.maxBytes = maxBytes;
+      this.timeout = timeout;
+    }
+
+    /**
+     * Creates a reassembler configured from the chatter.fragment.memory and chatter.fragment.timeout system properties.
+     */
+    public static Reassembler fromProperties() {
+      return new Reassembler(Long.getLong("chatter.fragment.memory", 16 << 20), Long.getLong("chatter.fragment.timeout", 5000));
+    }
+
+    /**
+     * Adds a fragment, copying its content.
+     *
+     * @param from  address the fragment came from, since groups are only unique per sender
+     * @return the reassembled frame once the last missing fragment arrives, otherwise null
+     */
+    public ByteBuffer offer(SocketAddress from, ByteBuffer fragment) {
+      int start = fragment.position();
+      int group = fragment.getInt(start + 1);
+      int index = fragment.getShort(start + 5) & 0xFFFF;
+      int count = fragment.getShort(start + 7) & 0xFFFF;
+      int length = fragment.remaining() - OVERHEAD;
+
+      if (count == 0 || count > MAX_FRAGMENTS || index >= count || length > SIZE) {
+        dropped.increment();
+        return null;
+      }
+
+      long now = System.currentTimeMillis();
+      expire(now);
+
+      Key key = new Key(from, group);
+      Partial p = partials.get(key);
+
+      if (p == null) {
+        p = new Partial(count, now);
+        partials.put(key, p);
+      } else if (p.parts.length != count) {
+        dropped.increment();
+        return null;
+      }
+
+      if (p.parts[index] != null) {
+        return null;
+      }
+
+      // make room by giving up on the oldest frames, possibly this one
+      while (bytes + length > maxBytes && !partials.isEmpty()) {
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        Partial oldest = it.next().getValue();
+        it.remove();
+        discard(oldest);
+
+        if (oldest == p) {
+          return null;
+        }
+      }
+
+      byte[] part = new byte[length];
+      ByteBuffer source = fragment.duplicate();
+      source.position(start + OVERHEAD);
+      source.get(part);
+
+      p.parts[index] = part;
+      p.received++;
+      p.length += length;
+      bytes += length;
+
+      if (p.received < count) {
+        return null;
+      }
+
+      partials.remove(key);
+      bytes -= p.length;
+      reassembled.increment();
+
+      ByteBuffer frame = ByteBuffer.allocate(p.length);
+      for (byte[] b : p.parts) {
+        frame.put(b);
+      }
+      frame.flip();
+
+      return frame;
+    }
+
+    public int size() {
+      return partials.size();
+    }
+
+    private void expire(long now) {
+      Iterator<Partial> it = partials.values().iterator();
+
+      while (it.hasNext()) {
+        Partial p = it.next();
+
+        if (now - p.started < timeout) {
+          break;
+        }
+
+        it.remove();
+        discard(p);
+      }
+    }
+
+    private void discard(Partial p) {
+      bytes -= p.length;
+      dropped.increment();
+    }
+  }
+
+  private static class Partial {
+    final byte[][] parts;
+    final long started;
+    int received;
+    int length;
+
+    Partial(int count, long started) {
+      this.parts = new byte[count][];
+      this.started = started;
+    }
+  }
+
+  private static class Key {
+    final SocketAddress from;
+    final int group;
+
+    Key(SocketAddress from, int group) {
+      this.from = from;
+      this.group = group;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key k = (Key) o;
+      return group == k.group && Objects.equals(from, k.from);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Objects.hashCode(from) + group;
+    }
+  }
+}
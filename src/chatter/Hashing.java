@@ -0,0 +1,193 @@
+package chatter;
+
+import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class Hashing {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  // MessageDigest is not thread safe, so each thread keeps its own rather than looking one up per call
+  private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  });
+
+  // digests checked in place rather than returned, one per thread
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[20]);
+
+  public static String generateRandomHash() {
+    UUID uuid = UUID.randomUUID();
+    return toHex(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+  }
+
+  /**
+   * Hex encoding of a 128 bit value, as used for ids and tokens.
+   */
+  public static String toHex(long high, long low) {
+    char[] chars = new char[32];
+    putHex(chars, 0, high);
+    putHex(chars, 16, low);
+
+    return new String(chars);
+  }
+
+  public static String generateHash(String body) {
+    MessageDigest md = DIGESTS.get();
+
+    if (md == null) {
+      return null;
+    }
+
+    md.reset();
+    md.update(body.getBytes(StandardCharsets.UTF_8));
+
+    return toHex(md.digest());
+  }
+
+  /**
+   * Hex encoded SHA-1 of a region of a buffer. The buffer's position and limit are left untouched.
+   */
+  public static String hash(ByteBuffer buffer, int offset, int length) {
+    byte[] raw = digest(buffer, offset, length);
+    return raw == null ? null : toHex(raw);
+  }
+
+  /**
+   * Raw SHA-1 digest of a region of a buffer. The buffer's position and limit are left untouched.
+   */
+  public static byte[] digest(ByteBuffer buffer, int offset, int length) {
+    MessageDigest md = DIGESTS.get();
+
+    if (md == null) {
+      return null;
+    }
+
+    md.reset();
+
+    if (buffer.hasArray()) {
+      md.update(buffer.array(), buffer.arrayOffset() + offset, length);
+    } else {
+      ByteBuffer slice = buffer.duplicate();
+      slice.limit(offset + length).position(offset);
+      md.update(slice);
+    }
+
+    return md.digest();
+  }
+
+  /**
+   * Writes the raw SHA-1 digest of a region of a buffer at the buffer's position, advancing it past the digest.
+   *
+   * @return false if no digest is available
+   */
+  public static boolean putDigest(ByteBuffer buffer, int offset, int length) {
+    byte[] raw = digestInPlace(buffer, offset, length);
+
+    if (raw == null) {
+      return false;
+    }
+
+    buffer.put(raw);
+    return true;
+  }
+
+  /**
+   * Checks the raw SHA-1 digest stored at a position of a buffer against the digest of a region of it, without
+   * allocating. The buffer's position and limit are left untouched.
+   */
+  public static boolean checkDigest(ByteBuffer buffer, int offset, int length, int digestAt) {
+    byte[] raw = digestInPlace(buffer, offset, length);
+
+    if (raw == null || digestAt + raw.length > buffer.limit()) {
+      return false;
+    }
+
+    for (int i = 0; i < raw.length; i++) {
+      if (buffer.get(digestAt + i) != raw[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public static boolean checkHash(String hash, String body) {
+    return hash.equals(generateHash(body));
+  }
+
+  /**
+   * Checks a hex encoded hash against the SHA-1 of a region of a buffer without building the hex string.
+   */
+  public static boolean checkHash(String hash, ByteBuffer buffer, int offset, int length) {
+    byte[] raw = digest(buffer, offset, length);
+
+    if (hash == null || raw == null || hash.length() != raw.length * 2) {
+      return false;
+    }
+
+    for (int i = 0; i < raw.length; i++) {
+      if (hash.charAt(2 * i) != HEX[(raw[i] >> 4) & 0xF] || hash.charAt(2 * i + 1) != HEX[raw[i] & 0xF]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Digest of a region of a buffer into the calling thread's scratch array.
+   */
+  private static byte[] digestInPlace(ByteBuffer buffer, int offset, int length) {
+    MessageDigest md = DIGESTS.get();
+
+    if (md == null) {
+      return null;
+    }
+
+    md.reset();
+
+    if (buffer.hasArray()) {
+      md.update(buffer.array(), buffer.arrayOffset() + offset, length);
+    } else {
+      ByteBuffer slice = buffer.duplicate();
+      slice.limit(offset + length).position(offset);
+      md.update(slice);
+    }
+
+    byte[] raw = SCRATCH.get();
+
+    try {
+      md.digest(raw, 0, raw.length);
+    } catch (DigestException e) {
+      return null;
+    }
+
+    return raw;
+  }
+
+  public static String toHex(byte[] raw) {
+    char[] chars = new char[raw.length * 2];
+
+    for (int i = 0; i < raw.length; i++) {
+      chars[2 * i] = HEX[(raw[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX[raw[i] & 0xF];
+    }
+
+    return new String(chars);
+  }
+
+  private static void putHex(char[] chars, int offset, long value) {
+    for (int i = 15; i >= 0; i--) {
+      chars[offset + i] = HEX[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+}
@@ -0,0 +1,451 @@
+package chatter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * History keeps the lines of every conversation on disk, so that they survive a restart and need not be held on the
+ * heap.
+ *
+ * Each conversation is a pair of memory mapped files: an append-only log of its lines, and an index of the position
+ * of every line in the log, so that any line can be read without scanning the log and opening a conversation only
+ * means reading its line count. Files grow by doubling. A background thread forces changes to disk at a fixed interval
+ * rather than on every append. Delivery status is updated in place.
+ *
+ * Log record layout:
+ *
+ *   u32  record length, written last so a torn append is never read back
+ *   u8   status flags, see ChatLine
+ *   ...  id, sender and text, each a u16 length followed by UTF-8 bytes
+ *
+ * Index layout:
+ *
+ *   u32  number of lines, written after the line's entry so a torn append is never counted
+ *   u32  unused
+ *   ...  u64 position in the log of each line
+ *
+ * A history without a directory keeps its files in heap buffers instead and is lost on exit.
+ *
+ * @version     1.0
+ */
+public class History {
+
+  private static final byte RECEIVED_BY_SERVER = 1;
+  private static final byte RECEIVED_BY_CLIENT = 2;
+  private static final byte FAILED = 4;
+
+  private static final int HEADER = 5;
+  private static final int INDEX_HEADER = 8;
+  private static final int INITIAL_SIZE = 64 << 10;
+
+  private final Path dir;  // null when held in memory
+  private final Map<String, Transcript> transcripts = new TreeMap<>();
+  private volatile boolean closed;
+
+  private History(Path dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Opens the history in a directory, mapping every conversation already there without reading its lines.
+   *
+   * @param sync  interval in ms at which changes are forced to disk
+   */
+  public static History open(Path dir, long sync) throws IOException {
+    History h = new History(dir);
+    h.recover();
+
+    Thread syncer = new Thread(() -> {
+      while (!h.closed) {
+        try {
+          Thread.sleep(sync);
+        } catch (InterruptedException e) {
+          return;
+        }
+        h.sync();
+      }
+    }, "chatter-history-sync");
+
+    syncer.setDaemon(true);
+    syncer.start();
+
+    return h;
+  }
+
+  /**
+   * Creates a history held in memory only.
+   */
+  public static History inMemory() {
+    return new History(null);
+  }
+
+  /**
+   * Opens the history of a user under the directory set with the chatter.history.dir system property, synced at the
+   * interval set with chatter.history.sync. Falls back to a history in memory if it cannot be opened.
+   */
+  public static History fromProperties(String username) {
+    Path dir = Paths.get(System.getProperty("chatter.history.dir", "history")).resolve(encode(username));
+    long sync = Long.getLong("chatter.history.sync", 1000);
+
+    try {
+      return open(dir, sync);
+    } catch (IOException e) {
+      Log.error("failed to open history in " + dir + ", keeping it in memory: " + e.getMessage());
+      return inMemory();
+    }
+  }
+
+  /**
+   * Contacts with a conversation, in order of name.
+   */
+  public synchronized List<String> contacts() {
+    return new ArrayList<>(transcripts.keySet());
+  }
+
+  public synchronized boolean contains(String contact) {
+    return transcripts.containsKey(contact);
+  }
+
+  /**
+   * Starts an empty conversation with a contact.
+   *
+   * @return false if there already is one
+   */
+  public synchronized boolean create(String contact) throws IOException {
+    if (transcripts.containsKey(contact)) {
+      return false;
+    }
+
+    transcripts.put(contact, map(contact));
+    return true;
+  }
+
+  public synchronized int size(String contact) {
+    Transcript t = transcripts.get(contact);
+    return t == null ? 0 : t.count;
+  }
+
+  /**
+   * Appends a line to an existing conversation.
+   *
+   * @return position of the line in the conversation
+   */
+  public synchronized int append(String contact, ChatLine line) throws IOException {
+    Transcript t = transcripts.get(contact);
+
+    byte[][] fields = {
+      bytes(line.getId()), bytes(line.getSender()), bytes(line.getText())
+    };
+
+    int length = HEADER;
+    for (byte[] f : fields) {
+      length += 2 + f.length;
+    }
+
+    // leave room for the length of the record after this one, which is read as zero until written
+    t.log = grow(t.log, t.logChannel, t.write + length + 4);
+    t.index = grow(t.index, t.indexChannel, INDEX_HEADER + (t.count + 1) * 8);
+
+    ByteBuffer log = t.log;
+    int offset = Math.toIntExact(t.write);
+
+    log.put(offset + 4, flags(line));
+
+    int p = offset + HEADER;
+    for (byte[] f : fields) {
+      log.putShort(p, (short) f.length);
+      log.position(p + 2);
+      log.put(f);
+      p += 2 + f.length;
+    }
+
+    // publish the record by writing its length last, then count it in the index
+    log.putInt(offset, length);
+    t.index.putLong(INDEX_HEADER + t.count * 8, offset);
+    t.index.putInt(0, t.count + 1);
+
+    t.write += length;
+    t.dirty = true;
+
+    return t.count++;
+  }
+
+  /**
+   * Reads a line of a conversation.
+   *
+   * @return the line, or null if there is no such line
+   */
+  public synchronized ChatLine read(String contact, int index) {
+    Transcript t = transcripts.get(contact);
+
+    if (t == null || index < 0 || index >= t.count) {
+      return null;
+    }
+
+    int offset = offset(t, index);
+
+    if (offset < 0) {
+      return null;
+    }
+
+    byte flags = t.log.get(offset + 4);
+
+    String[] fields = new String[3];
+
+    int p = offset + HEADER;
+    for (int i = 0; i < fields.length; i++) {
+      int length = t.log.getShort(p) & 0xFFFF;
+      byte[] b = new byte[length];
+      t.log.position(p + 2);
+      t.log.get(b);
+      fields[i] = new String(b, StandardCharsets.UTF_8);
+      p += 2 + length;
+    }
+
+    ChatLine line = new ChatLine(fields[0].isEmpty() ? null : fields[0], fields[1], fields[2], (flags & RECEIVED_BY_SERVER) != 0, (flags & RECEIVED_BY_CLIENT) != 0);
+    line.setFailed((flags & FAILED) != 0);
+
+    return line;
+  }
+
+  /**
+   * Stores the delivery status of a line in place.
+   */
+  public synchronized void update(String contact, int index, ChatLine line) {
+    Transcript t = transcripts.get(contact);
+
+    if (t == null || index < 0 || index >= t.count) {
+      return;
+    }
+
+    int offset = offset(t, index);
+
+    if (offset >= 0) {
+      t.log.put(offset + 4, flags(line));
+      t.dirty = true;
+    }
+  }
+
+  /**
+   * Forces the conversations changed since the last sync to disk.
+   */
+  public void sync() {
+    List<Transcript> changed = new ArrayList<>();
+
+    synchronized (this) {
+      if (dir == null) {
+        return;
+      }
+
+      for (Transcript t : transcripts.values()) {
+        if (t.dirty) {
+          t.dirty = false;
+          changed.add(t);
+        }
+      }
+    }
+
+    for (Transcript t : changed) {
+      ((MappedByteBuffer) t.log).force();
+      ((MappedByteBuffer) t.index).force();
+    }
+  }
+
+  /**
+   * Syncs and closes every conversation. The history cannot be used afterwards.
+   */
+  public void close() {
+    sync();
+
+    synchronized (this) {
+      closed = true;
+
+      for (Transcript t : transcripts.values()) {
+        try {
+          if (t.logChannel != null) {
+            t.logChannel.close();
+            t.indexChannel.close();
+          }
+        } catch (IOException e) {
+          Log.error("failed to close history of " + t.contact);
+        }
+      }
+
+      transcripts.clear();
+    }
+  }
+
+  private void recover() throws IOException {
+    Files.createDirectories(dir);
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.idx")) {
+      for (Path p : stream) {
+        String name = p.getFileName().toString();
+        String contact = URLDecoder.decode(name.substring(0, name.length() - 4), StandardCharsets.UTF_8);
+        Transcript t = map(contact);
+
+        // the line count and the end of the last line are all there is to recover, as long as the index agrees with
+        // the log: lines are walked from the start up to the count in the header, stopping at the first whose entry
+        // does not follow on from the line before it or whose record runs past the log, so the walk never goes
+        // beyond what was validly written
+        int claimed = t.index.getInt(0);
+        long limit = Math.min(claimed, (t.index.capacity() - INDEX_HEADER) / 8);
+        int count = 0;
+
+        t.write = t.log.capacity();
+        while (count < limit && follows(t, count)) {
+          count++;
+        }
+
+        t.write = count > 0 ? end(t, count - 1) : 0;
+
+        if (count != claimed) {
+          Log.warn("recovered " + count + " of " + claimed + " lines of the history of " + contact);
+          t.index.putInt(0, count);
+          t.dirty = true;
+        }
+
+        t.count = count;
+        transcripts.put(contact, t);
+      }
+    }
+  }
+
+  /**
+   * Position in the log of a line, or -1 if the index does not hold a position within what has been written.
+   */
+  private static int offset(Transcript t, int index) {
+    long offset = t.index.getLong(INDEX_HEADER + index * 8);
+
+    if (offset < 0 || offset + HEADER > t.write) {
+      return -1;
+    }
+
+    return (int) offset;
+  }
+
+  /**
+   * End in the log of a line, or -1 if its record does not fit within what has been written.
+   */
+  private static long end(Transcript t, int index) {
+    int offset = offset(t, index);
+
+    if (offset < 0) {
+      return -1;
+    }
+
+    long end = (long) offset + t.log.getInt(offset);
+    return end < offset + HEADER || end > t.write ? -1 : end;
+  }
+
+  /**
+   * Whether a line's record is whole and starts where the one before it ends, records being written back to back.
+   */
+  private static boolean follows(Transcript t, int index) {
+    if (end(t, index) < 0) {
+      return false;
+    }
+
+    return offset(t, index) == (index == 0 ? 0 : end(t, index - 1));
+  }
+
+  private Transcript map(String contact) throws IOException {
+    Transcript t = new Transcript();
+    t.contact = contact;
+
+    if (dir == null) {
+      t.log = ByteBuffer.allocate(INITIAL_SIZE);
+      t.index = ByteBuffer.allocate(INITIAL_SIZE);
+      return t;
+    }
+
+    String name = encode(contact);
+    t.logChannel = channel(dir.resolve(name + ".log"));
+    t.indexChannel = channel(dir.resolve(name + ".idx"));
+    t.log = map(t.logChannel, Math.max(INITIAL_SIZE, t.logChannel.size()));
+    t.index = map(t.indexChannel, Math.max(INITIAL_SIZE, t.indexChannel.size()));
+
+    return t;
+  }
+
+  /**
+   * Makes sure a file has room up to the given size, doubling it and mapping it again if it has not.
+   */
+  private static ByteBuffer grow(ByteBuffer buffer, FileChannel channel, long needed) throws IOException {
+    if (needed <= buffer.capacity()) {
+      return buffer;
+    }
+
+    long size = buffer.capacity();
+    while (size < needed) {
+      size *= 2;
+    }
+
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("conversation too large");
+    }
+
+    if (channel == null) {
+      ByteBuffer b = ByteBuffer.allocate((int) size);
+      b.put(buffer.duplicate().clear());
+      return b;
+    }
+
+    ((MappedByteBuffer) buffer).force();
+    return map(channel, size);
+  }
+
+  private static FileChannel channel(Path path) throws IOException {
+    return new RandomAccessFile(path.toFile(), "rw").getChannel();
+  }
+
+  private static MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  private static byte flags(ChatLine line) {
+    return (byte) ((line.isReceivedByServer() ? RECEIVED_BY_SERVER : 0) | (line.isReceivedByClient() ? RECEIVED_BY_CLIENT : 0) | (line.isFailed() ? FAILED : 0));
+  }
+
+  private static String encode(String name) {
+    // contacts and usernames become file names, so anything with a meaning in a path is escaped, dots included
+    return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+  }
+
+  private static byte[] bytes(String s) {
+    byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+
+    // field lengths are u16
+    if (b.length > 0xFFFF) {
+      b = Arrays.copyOf(b, 0xFFFF);
+    }
+
+    return b;
+  }
+
+  private static class Transcript {
+    String contact;
+    FileChannel logChannel;  // null when held in memory
+    FileChannel indexChannel;
+    ByteBuffer log;
+    ByteBuffer index;
+    int count;
+    long write;
+    boolean dirty;
+  }
+}
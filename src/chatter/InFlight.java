@@ -0,0 +1,181 @@
+package chatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * InFlight tracks messages the server has sent and is waiting to have acknowledged.
+ *
+ * Entries are kept in the order they were sent, which lets both limits be enforced cheaply from the oldest end every
+ * time a message is tracked: entries older than the time to live are expired, and once the tracker is at capacity the
+ * oldest entry is evicted to make room. Expired and evicted entries are handed back to the caller, which is
+ * responsible for cancelling their retransmission and telling anyone waiting on them.
+ *
+ * @version     1.0
+ */
+public class InFlight {
+
+  /**
+   * The send request a forward was made for, kept so its sender can be told whether it was delivered.
+   */
+  public static class Forward {
+    private final String requestId;
+    private final String sender;
+    private final String recipient;
+    private final boolean stored;
+
+    public Forward(String requestId, String sender, String recipient) {
+      this(requestId, sender, recipient, false);
+    }
+
+    /**
+     * @param stored  whether the forward delivers a letter taken from the mailbox
+     */
+    public Forward(String requestId, String sender, String recipient, boolean stored) {
+      this.requestId = requestId;
+      this.sender = sender;
+      this.recipient = recipient;
+      this.stored = stored;
+    }
+
+    public String getRequestId() {
+      return requestId;
+    }
+
+    public String getSender() {
+      return sender;
+    }
+
+    public String getRecipient() {
+      return recipient;
+    }
+
+    /**
+     * Whether the forward delivers a letter from the mailbox, whose id is the request id.
+     */
+    public boolean isStored() {
+      return stored;
+    }
+  }
+
+  /**
+   * A single unacknowledged message.
+   */
+  public static class Entry {
+    private final String id;
+    private final Forward forward;
+    private final long created;
+    private long sent;
+
+    Entry(String id, Forward forward, long now) {
+      this.id = id;
+      this.forward = forward;
+      this.created = now;
+      this.sent = now;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Send request this message forwards, or null if it forwards none.
+     */
+    public Forward getForward() {
+      return forward;
+    }
+
+    public long getCreated() {
+      return created;
+    }
+
+    /**
+     * Time the message was first sent, or -1 once it has been retransmitted and can no longer be timed.
+     */
+    public long getSent() {
+      return sent;
+    }
+  }
+
+  private final int capacity;
+  private final long ttl;  // ms
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+  public InFlight(int capacity, long ttl) {
+    this.capacity = capacity;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Creates a tracker configured from the chatter.inflight.max and chatter.inflight.ttl system properties.
+   */
+  public static InFlight fromProperties() {
+    return fromProperties(1);
+  }
+
+  /**
+   * Creates one of several trackers which share the chatter.inflight.max limit equally.
+   */
+  public static InFlight fromProperties(int shares) {
+    int capacity = Math.max(1, Integer.getInteger("chatter.inflight.max", 100000) / shares);
+    return new InFlight(capacity, Long.getLong("chatter.inflight.ttl", 300000));
+  }
+
+  /**
+   * Starts tracking a message that has just been sent.
+   *
+   * @param forward  send request the message forwards, or null if it forwards none
+   * @return entries that expired or were evicted to make room
+   */
+  public synchronized List<Entry> track(String id, Forward forward) {
+    long now = System.currentTimeMillis();
+    List<Entry> dropped = Collections.emptyList();
+
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry oldest = it.next();
+
+      if (now - oldest.created < ttl && entries.size() < capacity) {
+        break;
+      }
+
+      it.remove();
+
+      if (dropped.isEmpty()) {
+        dropped = new ArrayList<>();
+      }
+      dropped.add(oldest);
+    }
+
+    entries.put(id, new Entry(id, forward, now));
+    return dropped;
+  }
+
+  /**
+   * Records that a message has been retransmitted, so its ack will not be used as an rtt sample.
+   */
+  public synchronized void retransmitted(String id) {
+    Entry e = entries.get(id);
+
+    if (e != null) {
+      e.sent = -1;
+    }
+  }
+
+  /**
+   * Stops tracking a message, either because it was acknowledged or because it was abandoned.
+   *
+   * @return the entry, or null if the message was not in flight
+   */
+  public synchronized Entry remove(String id) {
+    return entries.remove(id);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+}
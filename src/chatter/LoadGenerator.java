@@ -0,0 +1,642 @@
+package chatter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator drives a server with many simulated users over loopback, without any user interface, for capacity
+ * testing.
+ *
+ * Every user has a socket of its own, since the server tells sessions apart by address. Users are split between a few
+ * worker threads, each polling its users' sockets with a selector and sending at its share of the total rate from
+ * randomly chosen users of its own to recipients drawn from all users. Messages carry the time they were sent, so the
+ * delivery latency of a forward is known on arrival, and the sender times the ack and the received receipt of every
+ * message it sends. Outgoing and incoming datagrams may be dropped at random to exercise retransmission.
+ *
+ * Configured with system properties:
+ *
+ *   chatter.load.server       address of the server, 127.0.0.1:8888
+ *   chatter.load.users        simulated users, 1000
+ *   chatter.load.rate         messages sent per second across all users, 1000
+ *   chatter.load.duration     seconds spent sending, 30
+ *   chatter.load.size         bytes of text per message, 64
+ *   chatter.load.recipients   uniform, or zipf to favour a few popular users
+ *   chatter.load.zipf         exponent of the zipf distribution, 1.0
+ *   chatter.load.loss         probability of dropping each datagram in either direction, 0
+ *   chatter.load.codec        protocol version offered at register, 2.0
+ *   chatter.load.compression  whether compression is offered at register, false
+ *   chatter.load.threads      worker threads, the number of cores
+ *
+ * Progress is logged every second and latency percentiles once sending stops and outstanding messages have drained.
+ *
+ * @version     1.0
+ */
+public class LoadGenerator {
+
+  private static final Metrics.Counter SENT = Metrics.counter("load.sent");
+  private static final Metrics.Counter ACKED = Metrics.counter("load.acked");
+  private static final Metrics.Counter DELIVERED = Metrics.counter("load.delivered");
+  private static final Metrics.Counter RECEIPTS = Metrics.counter("load.receipts");
+  private static final Metrics.Counter FAILED = Metrics.counter("load.failed");
+  private static final Metrics.Counter DUPLICATES = Metrics.counter("load.duplicates");
+  private static final Metrics.Counter ERRORS = Metrics.counter("load.errors");
+  private static final Metrics.Counter LOST = Metrics.counter("load.lost");
+
+  private static final Metrics.Histogram ACK = Metrics.histogram("load.ack.us");
+  private static final Metrics.Histogram DELIVERY = Metrics.histogram("load.delivery.us");
+  private static final Metrics.Histogram RECEIPT = Metrics.histogram("load.receipt.us");
+
+  private static final long REGISTER_TIMEOUT = 30000;  // ms
+  private static final long DRAIN_TIMEOUT = 10000;  // ms
+
+  private final InetSocketAddress server;
+  private final int rate;
+  private final int size;
+  private final double loss;
+  private final String codec;
+  private final boolean compression;
+
+  private final User[] users;
+  private final Worker[] workers;
+  private final double[] popularity;  // cumulative probability of each user being the recipient, null if uniform
+
+  private final RetransmitScheduler retransmits = new RetransmitScheduler();
+  private final AtomicLong registered = new AtomicLong();
+  private final AtomicLong outstanding = new AtomicLong();  // sent messages without a receipt or failure yet
+  private volatile boolean sending = false;
+
+  public LoadGenerator(InetSocketAddress server, int count, int rate, int size, String recipients, double zipf, double loss, String codec, boolean compression, int threads) throws IOException {
+    this.server = server;
+    this.rate = rate;
+    this.size = size;
+    this.loss = loss;
+    this.codec = codec;
+    this.compression = compression;
+
+    this.popularity = recipients.equals("zipf") ? zipf(count, zipf) : null;
+
+    // a run prefix keeps usernames unique across runs against the same server
+    String run = Integer.toString(ThreadLocalRandom.current().nextInt(1 << 20), 36);
+
+    this.workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(i);
+    }
+
+    this.users = new User[count];
+    for (int i = 0; i < count; i++) {
+      users[i] = new User("load-" + run + "-" + i, workers[i % threads]);
+      users[i].worker.add(users[i]);
+    }
+  }
+
+  /**
+   * Creates a load generator configured from the chatter.load.* system properties.
+   */
+  public static LoadGenerator fromProperties() throws IOException {
+    String[] address = System.getProperty("chatter.load.server", "127.0.0.1:8888").split(":");
+
+    return new LoadGenerator(
+      new InetSocketAddress(address[0], Integer.parseInt(address[1])),
+      Math.max(2, Integer.getInteger("chatter.load.users", 1000)),
+      Math.max(1, Integer.getInteger("chatter.load.rate", 1000)),
+      Math.max(32, Integer.getInteger("chatter.load.size", 64)),
+      System.getProperty("chatter.load.recipients", "uniform"),
+      Double.parseDouble(System.getProperty("chatter.load.zipf", "1.0")),
+      Double.parseDouble(System.getProperty("chatter.load.loss", "0")),
+      System.getProperty("chatter.load.codec", Message.BINARY_VERSION),
+      Boolean.getBoolean("chatter.load.compression"),
+      Math.max(1, Integer.getInteger("chatter.load.threads", Runtime.getRuntime().availableProcessors())));
+  }
+
+  /**
+   * Registers every user, sends for the given number of seconds, waits for outstanding messages and reports.
+   */
+  public void run(int duration) throws InterruptedException {
+    Log.info("registering " + users.length + " users with " + server + " on " + workers.length + " threads");
+
+    for (Worker w : workers) {
+      w.start();
+    }
+
+    long deadline = System.currentTimeMillis() + REGISTER_TIMEOUT;
+    while (registered.get() < users.length && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+
+    if (registered.get() < users.length) {
+      Log.warn("only " + registered.get() + " of " + users.length + " users registered, carrying on with those");
+    }
+
+    Log.info("sending " + rate + " messages/s for " + duration + "s");
+
+    sending = true;
+    long[] last = snapshot();
+
+    for (int s = 1; s <= duration; s++) {
+      Thread.sleep(1000);
+      last = progress(s + "s", last);
+    }
+
+    sending = false;
+
+    deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+    while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1000);
+      last = progress("drain", last);
+    }
+
+    report(duration);
+
+    for (Worker w : workers) {
+      w.execute(w::unregister);
+    }
+
+    Thread.sleep(500);
+  }
+
+  private long[] snapshot() {
+    return new long[] { SENT.get(), DELIVERED.get(), RECEIPTS.get() };
+  }
+
+  private long[] progress(String label, long[] last) {
+    long[] now = snapshot();
+
+    Log.info(String.format("%-6s sent %7d/s  delivered %7d/s  receipts %7d/s  outstanding %7d  retransmitted %6d  lost %6d",
+        label, now[0] - last[0], now[1] - last[1], now[2] - last[2], outstanding.get(), retransmits.getRetransmitted(), LOST.get()));
+
+    return now;
+  }
+
+  private void report(int duration) {
+    Log.info(String.format("sent %d (%d/s), acked %d, delivered %d (%d/s), receipts %d, failed %d, still outstanding %d",
+        SENT.get(), SENT.get() / duration, ACKED.get(), DELIVERED.get(), DELIVERED.get() / duration, RECEIPTS.get(), FAILED.get(), outstanding.get()));
+    Log.info(String.format("retransmitted %d, abandoned %d, duplicate forwards %d, errors %d, datagrams dropped %d",
+        retransmits.getRetransmitted(), retransmits.getAbandoned(), DUPLICATES.get(), ERRORS.get(), LOST.get()));
+
+    report("ack", ACK);
+    report("delivery", DELIVERY);
+    report("receipt", RECEIPT);
+  }
+
+  private static void report(String name, Metrics.Histogram h) {
+    Log.info(String.format("%-8s latency ms  p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f  (n=%d)", name,
+        h.percentile(0.5) / 1000.0, h.percentile(0.9) / 1000.0, h.percentile(0.99) / 1000.0, h.percentile(0.999) / 1000.0,
+        h.getMax() / 1000.0, h.getCount()));
+  }
+
+  /**
+   * Cumulative zipf probabilities over users, the first being the most popular.
+   */
+  private static double[] zipf(int n, double exponent) {
+    double[] cdf = new double[n];
+    double sum = 0;
+
+    for (int i = 0; i < n; i++) {
+      sum += 1 / Math.pow(i + 1, exponent);
+      cdf[i] = sum;
+    }
+
+    for (int i = 0; i < n; i++) {
+      cdf[i] /= sum;
+    }
+
+    return cdf;
+  }
+
+  private User recipient(Random random, User sender) {
+    int i;
+
+    if (popularity == null) {
+      i = random.nextInt(users.length);
+    } else {
+      i = Arrays.binarySearch(popularity, random.nextDouble());
+      i = Math.min(i < 0 ? -i - 1 : i, users.length - 1);
+    }
+
+    // nobody writes to themselves
+    return users[i] == sender ? users[(i + 1) % users.length] : users[i];
+  }
+
+  /**
+   * User is one simulated client. It is only touched from its worker's thread.
+   */
+  private class User {
+    final String username;
+    final Worker worker;
+    final DatagramChannel channel;
+
+    String token;
+    String version = Message.VERSION;
+    boolean compressed;
+    String registration;  // id of the register request while it is unanswered
+    final AckTracker acks = new AckTracker();
+    final Map<String, Pending> sends = new HashMap<>();  // id -> message awaiting its receipt
+
+    User(String username, Worker worker) throws IOException {
+      this.username = username;
+      this.worker = worker;
+      this.channel = DatagramChannel.open();
+      this.channel.bind(new InetSocketAddress(server.getAddress(), 0));
+      this.channel.configureBlocking(false);
+    }
+  }
+
+  private static class Pending {
+    final Map<String, String> request;
+    final long sent = System.nanoTime();
+    boolean retransmitted;
+    boolean acked;
+
+    Pending(Map<String, String> request) {
+      this.request = request;
+    }
+  }
+
+  /**
+   * Worker sends and receives for its share of the users on a thread of its own.
+   */
+  private class Worker extends Thread {
+    private final Selector selector;
+    private final List<User> users = new ArrayList<>();
+    private final List<User> active = new ArrayList<>();  // registered users, the ones that send
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Fragments.Reassembler reassembler = Fragments.Reassembler.fromProperties();
+    private final RttEstimator rtt = new RttEstimator();
+    private final Random random = new Random();
+    private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+    Worker(int index) throws IOException {
+      super("chatter-load-" + index);
+      setDaemon(true);
+      this.selector = Selector.open();
+    }
+
+    void add(User u) throws IOException {
+      users.add(u);
+      u.channel.register(selector, SelectionKey.OP_READ, u);
+    }
+
+    /**
+     * Runs a task on this worker's thread.
+     */
+    void execute(Runnable task) {
+      tasks.offer(task);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      for (User u : users) {
+        register(u);
+      }
+
+      long interval = (long) (1e9 * workers.length / rate);
+      long next = System.nanoTime();
+
+      try {
+        while (true) {
+          long wait = sending ? (next - System.nanoTime()) / 1000000 : 100;
+
+          if (wait > 0) {
+            selector.select(wait);
+          } else {
+            selector.selectNow();
+          }
+
+          for (SelectionKey key : selector.selectedKeys()) {
+            receive((User) key.attachment());
+          }
+          selector.selectedKeys().clear();
+
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          if (!sending || active.isEmpty()) {
+            next = System.nanoTime();
+            continue;
+          }
+
+          long now = System.nanoTime();
+
+          // a worker that falls far behind its rate does not try to catch up in one burst
+          if (now - next > 1000000000L) {
+            next = now;
+          }
+
+          while (next <= now) {
+            send(active.get(random.nextInt(active.size())));
+            next += interval;
+          }
+        }
+      } catch (IOException e) {
+        Log.error(getName() + " failed: " + e.getMessage());
+      }
+    }
+
+    private void register(User u) {
+      Map<String, String> request = new HashMap<>();
+      request.put("id", Hashing.generateRandomHash());
+      request.put("type", "register");
+      request.put("username", u.username);
+      request.put("codec", codec);
+
+      if (compression) {
+        request.put("compression", Compression.NAME);
+      }
+
+      u.registration = request.get("id");
+      transmit(u, request);
+      retry(u, request, null);
+    }
+
+    private void send(User u) {
+      User recipient = recipient(random, u);
+
+      Map<String, String> request = new HashMap<>();
+      String id = Hashing.generateRandomHash();
+      request.put("id", id);
+      request.put("type", "send");
+      request.put("recipient", recipient.username);
+      request.put("text", text(id));
+
+      Pending p = new Pending(request);
+      u.sends.put(id, p);
+      outstanding.incrementAndGet();
+      SENT.increment();
+
+      transmit(u, request);
+      retry(u, request, p);
+    }
+
+    /**
+     * Text of a message, carrying its id and the time it was sent, padded to the configured size.
+     */
+    private String text(String id) {
+      StringBuilder builder = new StringBuilder(size);
+      builder.append(id).append(' ').append(System.nanoTime()).append(' ');
+
+      while (builder.length() < size) {
+        builder.append('x');
+      }
+
+      return builder.toString();
+    }
+
+    private void retry(User u, Map<String, String> request, Pending p) {
+      String id = request.get("id");
+
+      // the scheduler calls back on its own thread, so hand the work back to this worker
+      retransmits.schedule(id, rtt.getTimeout(), new RetransmitScheduler.Retransmission() {
+        @Override
+        public void retransmit(int attempt) {
+          execute(() -> {
+            if (p != null) {
+              p.retransmitted = true;
+            }
+            transmit(u, request);
+          });
+        }
+
+        @Override
+        public void abandon() {
+          execute(() -> {
+            if (u.sends.remove(id) != null) {
+              outstanding.decrementAndGet();
+            }
+          });
+        }
+      });
+    }
+
+    private void unregister() {
+      for (User u : users) {
+        if (u.token != null) {
+          Map<String, String> request = new HashMap<>();
+          request.put("id", Hashing.generateRandomHash());
+          request.put("type", "unregister");
+          transmit(u, request);
+        }
+      }
+    }
+
+    private void receive(User u) {
+      while (true) {
+        buffer.clear();
+        SocketAddress from;
+
+        try {
+          from = u.channel.receive(buffer);
+        } catch (IOException e) {
+          Log.error(u.username + " failed to receive: " + e.getMessage());
+          return;
+        }
+
+        if (from == null) {
+          return;
+        }
+
+        buffer.flip();
+
+        if (loss > 0 && random.nextDouble() < loss) {
+          LOST.increment();
+          continue;
+        }
+
+        for (ByteBuffer part : Message.split(buffer)) {
+          if (Fragments.isFragment(part)) {
+            part = reassembler.offer(from, part);
+
+            if (part == null) {
+              continue;
+            }
+          }
+
+          if (Compression.isCompressed(part)) {
+            part = Compression.decompress(part);
+
+            if (part == null) {
+              ERRORS.increment();
+              continue;
+            }
+          }
+
+          Map<String, String> message = Message.decode(part);
+
+          if (!Message.validate(message)) {
+            ERRORS.increment();
+            continue;
+          }
+
+          handle(u, message);
+        }
+      }
+    }
+
+    private void handle(User u, Map<String, String> message) {
+      if (message.get("seq") == null) {
+        handle(u, message, System.nanoTime());
+        return;
+      }
+
+      // acknowledged after handling, so that the ack for the credentials carries the token they brought
+      if (u.acks.receive(Long.parseLong(message.get("seq")))) {
+        handle(u, message, System.nanoTime());
+      } else {
+        DUPLICATES.increment();
+      }
+
+      acknowledge(u);
+    }
+
+    private void handle(User u, Map<String, String> message, long now) {
+
+      switch (message.get("type")) {
+        case "credentials": {
+          if (u.token == null) {
+            u.token = message.get("token");
+            u.version = Message.BINARY_VERSION.equals(message.get("codec")) ? Message.BINARY_VERSION : Message.VERSION;
+            u.compressed = Compression.NAME.equals(message.get("compression"));
+            retransmits.cancel(u.registration);
+            active.add(u);
+            registered.incrementAndGet();
+          }
+          break;
+        }
+
+        case "ack": {
+          String target = message.get("target");
+          Pending p = target == null ? null : u.sends.get(target);
+
+          retransmits.cancel(target);
+
+          if (p != null && !p.acked) {
+            p.acked = true;
+            ACKED.increment();
+
+            // an ack for a retransmitted message is ambiguous (Karn's algorithm)
+            if (!p.retransmitted) {
+              long elapsed = (now - p.sent) / 1000;
+              ACK.record(elapsed);
+              rtt.sample(elapsed / 1000);
+            }
+          }
+          break;
+        }
+
+        case "forward": {
+          String[] text = message.get("text").split(" ", 3);
+
+          try {
+            DELIVERY.record((now - Long.parseLong(text[1])) / 1000);
+          } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            ERRORS.increment();
+          }
+
+          DELIVERED.increment();
+          break;
+        }
+
+        case "received":
+        case "failed": {
+          Pending p = message.get("target") == null ? null : u.sends.remove(message.get("target"));
+
+          if (p != null) {
+            // the receipt may have overtaken a lost ack
+            retransmits.cancel(message.get("target"));
+
+            outstanding.decrementAndGet();
+
+            if (message.get("type").equals("received")) {
+              RECEIPTS.increment();
+              RECEIPT.record((now - p.sent) / 1000);
+            } else {
+              FAILED.increment();
+            }
+          }
+          break;
+        }
+
+        case "error": {
+          ERRORS.increment();
+          Log.debug(u.username + " got error: " + message.get("text"));
+          break;
+        }
+
+        default: {
+          break;
+        }
+      }
+    }
+
+    /**
+     * Acknowledges everything received so far, straight away.
+     */
+    private void acknowledge(User u) {
+      Map<String, String> ack = new HashMap<>();
+      ack.put("id", Hashing.generateRandomHash());
+      ack.put("type", "ack");
+      u.acks.fill(ack);
+      transmit(u, ack);
+    }
+
+    private void transmit(User u, Map<String, String> m) {
+      if (u.token != null) {
+        m.put("token", u.token);
+      }
+
+      byte[] encoded = Message.encode(m, u.version);
+
+      if (encoded == null) {
+        ERRORS.increment();
+        Log.error(u.username + " failed to encode " + m.get("type"));
+        return;
+      }
+
+      ByteBuffer frame = ByteBuffer.wrap(encoded);
+
+      if (u.compressed) {
+        frame = Compression.compress(frame);
+      }
+
+      try {
+        Fragments.split(frame, Fragments.SIZE, (datagram) -> {
+          if (loss > 0 && random.nextDouble() < loss) {
+            LOST.increment();
+            return;
+          }
+
+          try {
+            u.channel.send(datagram, server);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        Log.error(u.username + " failed to send: " + e.getMessage());
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadGenerator generator = LoadGenerator.fromProperties();
+    generator.run(Math.max(1, Integer.getInteger("chatter.load.duration", 30)));
+  }
+}
@@ -0,0 +1,211 @@
+package chatter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log is a leveled logger that never blocks the caller on console output.
+ *
+ * Lines are placed in a fixed size ring buffer and written to stdout by a single background thread. When the ring is
+ * full new lines are dropped and counted rather than waited on. The level is set with the chatter.log system property
+ * (trace, debug, info, warn or error) and defaults to info, as does a level that is not one of these.
+ *
+ * @version     1.0
+ */
+public final class Log {
+
+  public enum Level {
+    TRACE("T"),
+    DEBUG("D"),
+    INFO("I"),
+    WARN("W"),
+    ERROR("E");
+
+    private final String prefix;
+
+    Level(String prefix) {
+      this.prefix = prefix;
+    }
+  }
+
+  private static final int CAPACITY = 8192;  // power of two
+  private static final int MASK = CAPACITY - 1;
+
+  private static final String CONFIGURED = System.getProperty("chatter.log", "info");
+
+  private static volatile Level level = parse(CONFIGURED);
+
+  private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<>(CAPACITY);
+  private static final AtomicLong tail = new AtomicLong();  // next slot to claim
+  private static volatile long head = 0;  // next slot to write out
+  private static final AtomicLong dropped = new AtomicLong();
+
+  private static final Thread writer;
+  private static volatile boolean closing = false;
+
+  static {
+    writer = new Thread(Log::drain, "chatter-log");
+    writer.setDaemon(true);
+    writer.start();
+
+    // have the writer write out whatever is still queued on exit
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::close));
+
+    if (!CONFIGURED.equalsIgnoreCase(level.name())) {
+      warn("unknown log level " + CONFIGURED + ", logging at " + level.name().toLowerCase(Locale.ROOT));
+    }
+  }
+
+  private Log() {}
+
+  public static boolean isEnabled(Level l) {
+    return l.compareTo(level) >= 0;
+  }
+
+  public static void setLevel(Level l) {
+    level = l;
+  }
+
+  public static void trace(String message) {
+    log(Level.TRACE, message);
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message);
+  }
+
+  public static void warn(String message) {
+    log(Level.WARN, message);
+  }
+
+  public static void error(String message) {
+    log(Level.ERROR, message);
+  }
+
+  public static void log(Level l, String message) {
+    if (!isEnabled(l)) {
+      return;
+    }
+
+    String line = l.prefix + ": " + message;
+
+    while (true) {
+      long t = tail.get();
+
+      if (t - head >= CAPACITY) {
+        dropped.incrementAndGet();
+        return;
+      }
+
+      if (tail.compareAndSet(t, t + 1)) {
+        ring.set((int) (t & MASK), line);
+        break;
+      }
+    }
+
+    LockSupport.unpark(writer);
+  }
+
+  /**
+   * Level named by a chatter.log value, or INFO if it names none.
+   */
+  private static Level parse(String name) {
+    try {
+      return Level.valueOf(name.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      return Level.INFO;
+    }
+  }
+
+  /**
+   * Number of lines dropped because the ring was full.
+   */
+  public static long getDropped() {
+    return dropped.get();
+  }
+
+  private static void drain() {
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+    long reported = 0;
+
+    while (true) {
+      boolean wrote = false;
+
+      try {
+        String line;
+        while ((line = take()) != null) {
+          out.write(line);
+          out.write('\n');
+          wrote = true;
+        }
+
+        long d = dropped.get();
+        if (d != reported) {
+          out.write("W: log ring full, dropped " + (d - reported) + " lines\n");
+          reported = d;
+          wrote = true;
+        }
+
+        if (wrote) {
+          out.flush();
+        }
+      } catch (IOException e) {
+        // nowhere left to report it
+      }
+
+      if (!wrote) {
+        if (closing) {
+          return;
+        }
+
+        LockSupport.parkNanos(10000000);
+      }
+    }
+  }
+
+  /**
+   * Takes the next line off the ring, or returns null if the next slot has not been filled yet.
+   */
+  private static synchronized String take() {
+    if (head == tail.get()) {
+      return null;
+    }
+
+    int slot = (int) (head & MASK);
+    String line = ring.get(slot);
+
+    // claimed but not yet published
+    if (line == null) {
+      return null;
+    }
+
+    ring.set(slot, null);
+    head++;
+    return line;
+  }
+
+  /**
+   * Tells the writer to stop once the ring is empty and waits for it, but not for long if stdout is stuck.
+   */
+  private static void close() {
+    closing = true;
+    LockSupport.unpark(writer);
+
+    try {
+      writer.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
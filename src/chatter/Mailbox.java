@@ -0,0 +1,605 @@
+package chatter;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Mailbox holds messages for users who are not currently connected until they next register.
+ *
+ * Only users who have registered at some point can be written to; their names are kept in a file next to the log.
+ * The mailbox is bounded by a number of letters per recipient, a number of letters in total and the time a letter may
+ * wait before it is dropped.
+ *
+ * Letters are appended to a log made of fixed size, memory mapped segment files, so queued messages live on disk
+ * rather than on the heap; only their positions are indexed in memory, per recipient and in arrival order. A letter
+ * taken for delivery stays live until its forward is acknowledged, and goes back to the front of its recipient's
+ * queue if the forward is abandoned. A background thread forces changed segments and newly enrolled recipients to disk
+ * at a fixed interval rather than on every change, and off the request path drops expired letters, deletes segments
+ * whose letters have all been delivered and compacts sparsely used older segments by copying their remaining letters
+ * to the end of the log.
+ *
+ * Record layout:
+ *
+ *   u32  record length, written last so a torn append is never read back
+ *   u8   state, LIVE or DELIVERED
+ *   u64  time the letter was queued, in ms since the epoch
+ *   ...  id, sender, recipient and text, each a u16 length followed by UTF-8 bytes
+ *
+ * @version     1.0
+ */
+public class Mailbox {
+
+  /**
+   * A message waiting for its recipient.
+   */
+  public static class Letter {
+    private final String id;
+    private final String sender;
+    private final String recipient;
+    private final String text;
+    private final long queued;
+
+    public Letter(String id, String sender, String recipient, String text) {
+      this(id, sender, recipient, text, System.currentTimeMillis());
+    }
+
+    private Letter(String id, String sender, String recipient, String text, long queued) {
+      this.id = id;
+      this.sender = sender;
+      this.recipient = recipient;
+      this.text = text;
+      this.queued = queued;
+    }
+
+    /**
+     * Id of the sender's original send request.
+     */
+    public String getId() {
+      return id;
+    }
+
+    public String getSender() {
+      return sender;
+    }
+
+    public String getRecipient() {
+      return recipient;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    /**
+     * Time the letter was queued, in ms since the epoch.
+     */
+    public long getQueued() {
+      return queued;
+    }
+  }
+
+  /**
+   * Outcome of queueing a letter.
+   */
+  public enum Result {
+    QUEUED,
+    UNKNOWN_RECIPIENT,
+    RECIPIENT_FULL,
+    FULL
+  }
+
+  private static final byte LIVE = 1;
+  private static final byte DELIVERED = 0;
+  private static final int HEADER = 13;
+
+  private static final double COMPACT_RATIO = 0.25;  // live fraction below which a sealed segment is compacted
+  private static final String RECIPIENTS = "recipients";
+
+  private final Path dir;
+  private final int segmentSize;
+  private final int perRecipient;
+  private final int capacity;
+  private final long ttl;  // ms
+
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+  private final Map<String, ArrayDeque<Long>> index = new HashMap<>();
+  private final Map<String, Long> taken = new HashMap<>();  // sender and letter id -> position, handed out and not yet acked
+  private final Set<String> recipients = new HashSet<>();
+  private final List<String> enrolled = new ArrayList<>();  // recipients not yet written to the recipients file
+  private final Set<Segment> dirty = new HashSet<>();  // segments changed since the last sync
+  private Segment active;
+  private int size;  // live letters, queued or taken
+
+  private Mailbox(Path dir, int segmentSize, int perRecipient, int capacity, long ttl) {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.perRecipient = perRecipient;
+    this.capacity = capacity;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Opens the mailbox in a directory, recovering any letters still queued there.
+   *
+   * @param sync          interval in ms at which appended letters are forced to disk and the log is cleaned up
+   * @param perRecipient  most letters queued for any one recipient
+   * @param capacity      most letters held in total
+   * @param ttl           time in ms a letter is kept before it is dropped undelivered
+   */
+  public static Mailbox open(Path dir, int segmentSize, long sync, int perRecipient, int capacity, long ttl) throws IOException {
+    Mailbox m = new Mailbox(dir, segmentSize, perRecipient, capacity, ttl);
+    m.recover();
+
+    Thread maintainer = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(sync);
+        } catch (InterruptedException e) {
+          return;
+        }
+        m.sync();
+        m.expire();
+        m.reclaim();
+      }
+    }, "chatter-mailbox");
+
+    maintainer.setDaemon(true);
+    maintainer.start();
+
+    return m;
+  }
+
+  /**
+   * Opens the mailbox configured by the chatter.mailbox.dir, chatter.mailbox.segment, chatter.mailbox.sync,
+   * chatter.mailbox.recipient.max, chatter.mailbox.max and chatter.mailbox.ttl system properties.
+   */
+  public static Mailbox fromProperties() throws IOException {
+    Path dir = Paths.get(System.getProperty("chatter.mailbox.dir", "mailbox"));
+    int segment = Integer.getInteger("chatter.mailbox.segment", 16 << 20);
+    long sync = Long.getLong("chatter.mailbox.sync", 1000);
+    int perRecipient = Integer.getInteger("chatter.mailbox.recipient.max", 1000);
+    int capacity = Integer.getInteger("chatter.mailbox.max", 100000);
+    long ttl = Long.getLong("chatter.mailbox.ttl", 7L * 24 * 60 * 60 * 1000);
+
+    return open(dir, segment, sync, perRecipient, capacity, ttl);
+  }
+
+  /**
+   * Records that a user exists, so that letters may be queued for them while they are away. The name is written to
+   * the recipients file on the next sync.
+   */
+  public synchronized void enroll(String username) {
+    if (username.indexOf('\n') >= 0 || !recipients.add(username)) {
+      return;
+    }
+
+    enrolled.add(username);
+  }
+
+  /**
+   * Queues a letter for its recipient, unless the recipient is unknown or a limit has been reached.
+   */
+  public synchronized Result put(Letter l) throws IOException {
+    if (!recipients.contains(l.getRecipient())) {
+      return Result.UNKNOWN_RECIPIENT;
+    }
+
+    if (size >= capacity) {
+      return Result.FULL;
+    }
+
+    ArrayDeque<Long> queue = index.get(l.getRecipient());
+
+    if (queue != null && queue.size() >= perRecipient) {
+      return Result.RECIPIENT_FULL;
+    }
+
+    long position = append(l);
+    index.computeIfAbsent(l.getRecipient(), (k) -> new ArrayDeque<>()).add(position);
+    size++;
+    return Result.QUEUED;
+  }
+
+  /**
+   * Takes the oldest letter queued for a recipient. The letter stays live until it is either delivered or returned.
+   *
+   * @return the letter, or null if none are queued
+   */
+  public synchronized Letter poll(String recipient) {
+    ArrayDeque<Long> queue = index.get(recipient);
+
+    if (queue == null) {
+      return null;
+    }
+
+    long position = queue.poll();
+
+    if (queue.isEmpty()) {
+      index.remove(recipient);
+    }
+
+    Letter l = read(segments.get(segmentOf(position)), offsetOf(position));
+    taken.put(key(l.getSender(), l.getId()), position);
+    return l;
+  }
+
+  /**
+   * Marks a taken letter delivered, once its recipient has acknowledged it.
+   *
+   * @param id  id of the sender's original send request, only unique to that sender
+   */
+  public synchronized void delivered(String sender, String id) {
+    Long position = taken.remove(key(sender, id));
+
+    if (position != null) {
+      discard(position);
+    }
+  }
+
+  /**
+   * Puts a taken letter back at the front of its recipient's queue, to be the next one delivered to them.
+   */
+  public synchronized void returned(String sender, String id) {
+    Long position = taken.remove(key(sender, id));
+
+    if (position != null) {
+      Letter l = read(segments.get(segmentOf(position)), offsetOf(position));
+      index.computeIfAbsent(l.getRecipient(), (k) -> new ArrayDeque<>()).addFirst(position);
+    }
+  }
+
+  public synchronized int pending(String recipient) {
+    ArrayDeque<Long> queue = index.get(recipient);
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Forces every segment changed since the last sync to disk, and appends newly enrolled recipients to the recipients
+   * file.
+   */
+  public void sync() {
+    List<MappedByteBuffer> maps = new ArrayList<>();
+    StringBuilder names = new StringBuilder();
+
+    synchronized (this) {
+      for (Segment s : dirty) {
+        // deleted since it was changed
+        if (s.map != null) {
+          maps.add(s.map);
+        }
+      }
+      dirty.clear();
+
+      for (String username : enrolled) {
+        names.append(username).append('\n');
+      }
+      enrolled.clear();
+    }
+
+    for (MappedByteBuffer map : maps) {
+      map.force();
+    }
+
+    if (names.length() > 0) {
+      try {
+        Files.write(dir.resolve(RECIPIENTS), names.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        Log.error("failed to record mailbox recipients: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Drops queued letters that have waited longer than the time to live.
+   */
+  private synchronized void expire() {
+    long cutoff = System.currentTimeMillis() - ttl;
+    int expired = 0;
+
+    Iterator<ArrayDeque<Long>> it = index.values().iterator();
+    while (it.hasNext()) {
+      ArrayDeque<Long> queue = it.next();
+
+      // queues are in arrival order, so the oldest letters are at the front
+      while (!queue.isEmpty()) {
+        long position = queue.peek();
+
+        if (segments.get(segmentOf(position)).map.getLong(offsetOf(position) + 5) > cutoff) {
+          break;
+        }
+
+        queue.poll();
+        discard(position);
+        expired++;
+      }
+
+      if (queue.isEmpty()) {
+        it.remove();
+      }
+    }
+
+    if (expired > 0) {
+      Log.info("dropped " + expired + " expired letters");
+    }
+  }
+
+  /**
+   * Marks a letter no longer live.
+   */
+  private void discard(long position) {
+    Segment s = segments.get(segmentOf(position));
+
+    s.map.put(offsetOf(position) + 4, DELIVERED);
+    s.live--;
+    size--;
+    dirty.add(s);
+  }
+
+  private long append(Letter l) throws IOException {
+    byte[][] fields = {
+      bytes(l.getId()), bytes(l.getSender()), bytes(l.getRecipient()), bytes(l.getText())
+    };
+
+    int length = HEADER;
+    for (byte[] f : fields) {
+      length += 2 + f.length;
+    }
+
+    if (length > segmentSize) {
+      throw new IOException("letter larger than a mailbox segment");
+    }
+
+    if (active.write + length + 4 > segmentSize) {
+      roll();
+    }
+
+    int offset = active.write;
+    MappedByteBuffer map = active.map;
+
+    map.put(offset + 4, LIVE);
+    map.putLong(offset + 5, l.getQueued());
+
+    int p = offset + HEADER;
+    for (byte[] f : fields) {
+      map.putShort(p, (short) f.length);
+      map.position(p + 2);
+      map.put(f);
+      p += 2 + f.length;
+    }
+
+    // publish the record by writing its length last
+    map.putInt(offset, length);
+
+    active.write += length;
+    active.live++;
+    active.records++;
+    dirty.add(active);
+
+    return position(active.number, offset);
+  }
+
+  private Letter read(Segment s, int offset) {
+    String[] fields = new String[4];
+
+    int p = offset + HEADER;
+    for (int i = 0; i < fields.length; i++) {
+      int length = s.map.getShort(p) & 0xFFFF;
+      byte[] b = new byte[length];
+      s.map.position(p + 2);
+      s.map.get(b);
+      fields[i] = new String(b, StandardCharsets.UTF_8);
+      p += 2 + length;
+    }
+
+    return new Letter(fields[0], fields[1], fields[2], fields[3], s.map.getLong(offset + 5));
+  }
+
+  /**
+   * Seals the active segment and starts a new one.
+   */
+  private void roll() throws IOException {
+    active.map.force();
+    active = create(active.number + 1);
+  }
+
+  /**
+   * Deletes sealed segments that hold no live letters, and compacts at most one that is mostly empty so that a single
+   * pass never holds the mailbox for long.
+   */
+  private synchronized void reclaim() {
+    for (Segment s : new ArrayList<>(segments.values())) {
+      if (s == active) {
+        continue;
+      }
+
+      try {
+        if (s.live == 0) {
+          delete(s);
+        } else if (s.live < s.records * COMPACT_RATIO) {
+          compact(s);
+          return;
+        }
+      } catch (IOException e) {
+        Log.error("failed to reclaim mailbox segment " + s.number);
+      }
+    }
+  }
+
+  /**
+   * Moves the live letters of a segment to the end of the log and deletes it.
+   */
+  private void compact(Segment s) throws IOException {
+    for (int offset = 0; offset + 4 <= segmentSize; ) {
+      int length = s.map.getInt(offset);
+
+      if (length == 0) {
+        break;
+      }
+
+      if (s.map.get(offset + 4) == LIVE) {
+        Letter l = read(s, offset);
+        long from = position(s.number, offset);
+        long to = append(l);
+
+        ArrayDeque<Long> queue = index.get(l.getRecipient());
+        if (queue != null) {
+          replace(queue, from, to);
+        }
+
+        taken.replace(key(l.getSender(), l.getId()), from, to);
+      }
+
+      offset += length;
+    }
+
+    delete(s);
+  }
+
+  /**
+   * Swaps one position for another in a recipient's queue, keeping the queue in arrival order.
+   */
+  private static void replace(ArrayDeque<Long> queue, long from, long to) {
+    List<Long> copy = new ArrayList<>(queue);
+    queue.clear();
+
+    for (long p : copy) {
+      queue.add(p == from ? to : p);
+    }
+  }
+
+  private void delete(Segment s) throws IOException {
+    segments.remove(s.number);
+    s.map = null;
+    s.channel.close();
+    Files.deleteIfExists(s.path);
+  }
+
+  private void recover() throws IOException {
+    Files.createDirectories(dir);
+
+    Path known = dir.resolve(RECIPIENTS);
+    if (Files.exists(known)) {
+      recipients.addAll(Files.readAllLines(known, StandardCharsets.UTF_8));
+    }
+
+    List<Integer> numbers = new ArrayList<>();
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.log")) {
+      for (Path p : stream) {
+        String name = p.getFileName().toString();
+        numbers.add(Integer.parseInt(name.substring(8, name.length() - 4)));
+      }
+    }
+
+    numbers.sort(null);
+
+    for (int n : numbers) {
+      Segment s = map(n);
+
+      for (int offset = 0; offset + 4 <= segmentSize; ) {
+        int length = s.map.getInt(offset);
+
+        if (length < HEADER || offset + length > segmentSize) {
+          break;
+        }
+
+        s.records++;
+
+        if (s.map.get(offset + 4) == LIVE) {
+          Letter l = read(s, offset);
+          index.computeIfAbsent(l.getRecipient(), (k) -> new ArrayDeque<>()).add(position(n, offset));
+          recipients.add(l.getRecipient());
+          s.live++;
+          size++;
+        }
+
+        offset += length;
+        s.write = offset;
+      }
+
+      segments.put(n, s);
+    }
+
+    active = segments.isEmpty() ? create(0) : segments.lastEntry().getValue();
+  }
+
+  private Segment create(int number) throws IOException {
+    Segment s = map(number);
+    segments.put(number, s);
+    return s;
+  }
+
+  private Segment map(int number) throws IOException {
+    Path path = dir.resolve("segment-" + number + ".log");
+
+    RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+    file.setLength(segmentSize);
+
+    Segment s = new Segment();
+    s.number = number;
+    s.path = path;
+    s.channel = file.getChannel();
+    s.map = s.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+
+    return s;
+  }
+
+  /**
+   * Key of a taken letter, since request ids are only unique per sender. The sender's length keeps the key
+   * unambiguous whatever characters the two contain.
+   */
+  private static String key(String sender, String id) {
+    return sender.length() + ":" + sender + id;
+  }
+
+  private static byte[] bytes(String s) {
+    byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+
+    // field lengths are u16
+    if (b.length > 0xFFFF) {
+      b = Arrays.copyOf(b, 0xFFFF);
+    }
+
+    return b;
+  }
+
+  private static long position(int segment, int offset) {
+    return ((long) segment << 32) | offset;
+  }
+
+  private static int segmentOf(long position) {
+    return (int) (position >>> 32);
+  }
+
+  private static int offsetOf(long position) {
+    return (int) position;
+  }
+
+  private static class Segment {
+    int number;
+    Path path;
+    FileChannel channel;
+    MappedByteBuffer map;
+    int write;
+    int live;
+    int records;
+  }
+}
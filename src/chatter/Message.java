@@ -0,0 +1,890 @@
+package chatter;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Message {
+
+  public final static String VERSION = "1.0";
+  public final static String BINARY_VERSION = "2.0";
+
+  /**
+   * Key added by decode to frames whose hash has already been checked against the received bytes.
+   */
+  public final static String VERSION_KEY = "version";
+
+  /*
+   * CHATTER/2.0 binary frame layout:
+   *
+   *   u8   version (2), which can never be the first byte of a text frame
+   *   u8   type code, see MessageType
+   *   16   id, raw bytes of the 32 character hex id (all zero if absent)
+   *   ...  fields, each a u8 tag followed by a u16 length and the value
+   *   20   SHA-1 of everything before it
+   *
+   * A tag with the HEX bit set carries a 32 character hex value as 16 raw bytes. Keys without a tag of their own
+   * use EXTRA, whose value is a u8 length prefixed key followed by the u16 length prefixed value. An id that is not
+   * 32 hex characters leaves the header zero and travels in an ID_TAG field instead.
+   */
+  private final static byte BINARY_MARKER = 2;
+
+  /*
+   * Several frames for the same destination may be coalesced into one datagram:
+   *
+   *   u8   batch marker (3)
+   *   ...  frames, each a u16 length followed by the frame itself
+   */
+  public final static byte BATCH_MARKER = 3;
+  public final static int BATCH_OVERHEAD = 2;  // per frame
+  private final static int ID_LENGTH = 16;
+  private final static int HASH_LENGTH = 20;
+  private final static int HEADER_LENGTH = 2 + ID_LENGTH;
+
+  private final static int EXTRA = 0;
+  private final static int HEX = 0x80;
+  private final static String[] TAGS = { null, "token", "target", "username", "recipient", "sender", "text", "codec", "channel", "seq", "cumulative", "sack", "compression", "id" };
+  private final static Envelope.Field[] FIELDS = Envelope.Field.values();  // in tag order, TAGS[1] onwards
+  private final static int ID_TAG = 13;  // after the last field, which has no slot of its own in an envelope
+
+  private final static int MAX_FRAME = 65536;
+
+  private final static byte[] HASH_PREFIX = "hash:".getBytes(StandardCharsets.US_ASCII);
+  private final static byte[] TOKEN_PREFIX = "token:".getBytes(StandardCharsets.US_ASCII);
+
+  private final static ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_FRAME));
+
+  public static byte[] encode(Map<String, String> map) {
+    if (map.get("type") == null) {
+      return null;
+    }
+
+    if (map.get("id") == null) {
+      map.put("id", Hashing.generateRandomHash());
+    }
+
+    StringBuilder builder = new StringBuilder();
+
+    builder.append("CHATTER/" + VERSION + "\r\n");
+
+    List<String> keys = new ArrayList<>(map.keySet());
+    keys.remove(VERSION_KEY);
+    Collections.sort(keys);
+
+    for (String key : keys) {
+      builder.append(key + ":" + map.get(key) + "\r\n");
+    }
+
+    String hash = Hashing.generateHash(builder.toString());
+
+    builder.append("hash:" + hash);
+
+    if (Log.isEnabled(Log.Level.TRACE)) {
+      Log.trace("SENDING\n" + builder.toString() + "\n");
+    }
+
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Encodes a message in the given protocol version.
+   */
+  public static byte[] encode(Map<String, String> map, String version) {
+    if (!BINARY_VERSION.equals(version)) {
+      return encode(map);
+    }
+
+    ByteBuffer buffer = BUFFERS.get();
+    buffer.clear();
+
+    if (encode(map, buffer) < 0) {
+      return null;
+    }
+
+    buffer.flip();
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Encodes a message as a CHATTER/2.0 binary frame at the buffer's position, advancing it past the frame.
+   *
+   * @return length of the frame, or -1 if the message has no known type or does not fit
+   */
+  public static int encode(Map<String, String> map, ByteBuffer buffer) {
+    MessageType type = MessageType.fromWireName(map.get("type"));
+
+    if (type == null) {
+      return -1;
+    }
+
+    if (map.get("id") == null) {
+      map.put("id", Hashing.generateRandomHash());
+    }
+
+    int start = buffer.position();
+
+    try {
+      buffer.put(BINARY_MARKER);
+      buffer.put((byte) type.ordinal());
+
+      String id = map.get("id");
+      boolean packedId = isHexId(id);
+
+      if (packedId) {
+        putHex(buffer, id);
+      } else {
+        buffer.put(new byte[ID_LENGTH]);
+      }
+
+      for (Map.Entry<String, String> e : map.entrySet()) {
+        String key = e.getKey();
+
+        if (key.equals("type") || key.equals(VERSION_KEY) || (key.equals("id") && packedId)) {
+          continue;
+        }
+
+        putField(buffer, key, e.getValue());
+      }
+
+      if (!Hashing.putDigest(buffer, start, buffer.position() - start)) {
+        buffer.position(start);
+        return -1;
+      }
+    } catch (BufferOverflowException e) {
+      buffer.position(start);
+      return -1;
+    }
+
+    if (Log.isEnabled(Log.Level.TRACE)) {
+      Log.trace("SENDING\n" + BINARY_VERSION + " " + map + "\n");
+    }
+
+    return buffer.position() - start;
+  }
+
+  /**
+   * Encodes a message in the given protocol version, returning a buffer ready to be read. Binary frames are written
+   * into a per-thread buffer which is only valid until the next call on the same thread.
+   */
+  public static ByteBuffer encodeFrame(Map<String, String> map, String version) {
+    if (!BINARY_VERSION.equals(version)) {
+      byte[] bytes = encode(map);
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+
+    ByteBuffer buffer = BUFFERS.get();
+    buffer.clear();
+
+    if (encode(map, buffer) < 0) {
+      return null;
+    }
+
+    buffer.flip();
+    return buffer;
+  }
+
+  public static Map<String, String> decode(byte[] bytes, int length) {
+    if (length > 0 && bytes[0] == BINARY_MARKER) {
+      return decodeBinary(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    if (Log.isEnabled(Log.Level.TRACE)) {
+      Log.trace("RECEIVED\n" + new String(bytes, 0, length, StandardCharsets.UTF_8) + "\n");
+    }
+
+    String[] lines = new String(bytes, 0, length, StandardCharsets.UTF_8).split("\r\n");;
+
+    if (lines.length < 3) {
+      return null;
+    }
+
+    String[] header = lines[0].split("/");
+
+    if (header.length < 2 || !VERSION.equals(header[1])) {
+      return null;
+    }
+
+    Map<String, String> map = new HashMap<>();
+
+    for (int i = 1; i < lines.length; i++) {
+      // split on the first colon only, the text itself may contain colons
+      String[] line = lines[i].split(":", 2);
+
+      if (line.length < 2 || line[0].equals(VERSION_KEY)) {
+        continue;
+      }
+
+      map.put(line[0], line[1]);
+    }
+
+    // the hash covers every byte before the trailing hash line, so check it against the datagram as received
+    String hash = map.get("hash");
+    int body = hash == null ? -1 : length - HASH_PREFIX.length - hash.length();
+
+    if (body > 0 && startsWith(bytes, body, HASH_PREFIX) && Hashing.checkHash(hash, ByteBuffer.wrap(bytes), 0, body)) {
+      map.remove("hash");
+      map.put(VERSION_KEY, VERSION);
+    }
+
+    return map;
+  }
+
+  /**
+   * Splits a received datagram into the frames it carries: the datagram itself, or each frame of a coalesced batch.
+   * The returned buffers share content with the datagram.
+   */
+  public static List<ByteBuffer> split(ByteBuffer datagram) {
+    int position = datagram.position();
+    int limit = datagram.limit();
+
+    if (position == limit || datagram.get(position) != BATCH_MARKER) {
+      return Collections.singletonList(datagram);
+    }
+
+    List<ByteBuffer> frames = new ArrayList<>();
+
+    for (int p = position + 1; p + BATCH_OVERHEAD <= limit; ) {
+      int length = datagram.getShort(p) & 0xFFFF;
+      p += BATCH_OVERHEAD;
+
+      if (p + length > limit) {
+        break;
+      }
+
+      ByteBuffer frame = datagram.duplicate();
+      frame.limit(p + length).position(p);
+      frames.add(frame.slice());
+
+      p += length;
+    }
+
+    return frames;
+  }
+
+  /**
+   * Finds the token carried by the first frame of a datagram without decoding the frame or checking its hash, so that
+   * the datagram can be routed before it is handled. The datagram's position is left unchanged.
+   *
+   * @return the token, or null if the frame has none or is malformed
+   */
+  public static String peekToken(ByteBuffer datagram) {
+    int start = datagram.position();
+    int end = datagram.limit();
+
+    if (end - start > 1 + BATCH_OVERHEAD && datagram.get(start) == BATCH_MARKER) {
+      int length = datagram.getShort(start + 1) & 0xFFFF;
+      start += 1 + BATCH_OVERHEAD;
+      end = Math.min(end, start + length);
+    }
+
+    if (start == end) {
+      return null;
+    }
+
+    ByteBuffer b = datagram.duplicate();
+
+    if (datagram.get(start) == BINARY_MARKER) {
+      end -= HASH_LENGTH;
+
+      for (int p = start + HEADER_LENGTH; p + 3 <= end; ) {
+        int tag = datagram.get(p) & 0xFF;
+        int length = datagram.getShort(p + 1) & 0xFFFF;
+        p += 3;
+
+        if (p + length > end) {
+          return null;
+        }
+
+        if ((tag & ~HEX) == 1) {
+          b.limit(p + length).position(p);
+          return (tag & HEX) != 0 && length == ID_LENGTH ? getHex(b) : getUtf8(b, length);
+        }
+
+        p += length;
+      }
+
+      return null;
+    }
+
+    for (int p = start; p + TOKEN_PREFIX.length <= end; p++) {
+      if (p > start && datagram.get(p - 1) != '\n') {
+        continue;
+      }
+
+      int i = 0;
+      while (i < TOKEN_PREFIX.length && datagram.get(p + i) == TOKEN_PREFIX[i]) {
+        i++;
+      }
+
+      if (i < TOKEN_PREFIX.length) {
+        continue;
+      }
+
+      int from = p + TOKEN_PREFIX.length;
+      int to = from;
+      while (to < end && datagram.get(to) != '\r') {
+        to++;
+      }
+
+      b.limit(to).position(from);
+      return getUtf8(b, to - from);
+    }
+
+    return null;
+  }
+
+  /**
+   * Decodes the frame between the buffer's position and limit, which may be a direct buffer, in either protocol version.
+   */
+  public static Map<String, String> decode(ByteBuffer buffer) {
+    if (buffer.remaining() > 0 && buffer.get(buffer.position()) == BINARY_MARKER) {
+      return decodeBinary(buffer);
+    }
+
+    if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0) {
+      return decode(buffer.array(), buffer.remaining());
+    }
+
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return decode(bytes, bytes.length);
+  }
+
+  /**
+   * Decodes the CHATTER/2.0 binary frame between the buffer's position and limit, checking its hash against the
+   * received bytes.
+   *
+   * @return the decoded message, or null if the frame is malformed or its hash does not match
+   */
+  private static Map<String, String> decodeBinary(ByteBuffer buffer) {
+    int start = buffer.position();
+    int end = buffer.limit() - HASH_LENGTH;
+
+    if (end - start < HEADER_LENGTH || buffer.get(start) != BINARY_MARKER) {
+      return null;
+    }
+
+    if (!Hashing.checkDigest(buffer, start, end - start, end)) {
+      return null;
+    }
+
+    MessageType type = MessageType.fromCode(buffer.get(start + 1));
+
+    if (type == null) {
+      return null;
+    }
+
+    Map<String, String> map = new HashMap<>();
+    map.put("type", type.wireName());
+    map.put(VERSION_KEY, BINARY_VERSION);
+
+    buffer.position(start + 2);
+    String id = getHex(buffer);
+    if (!id.equals("00000000000000000000000000000000")) {
+      map.put("id", id);
+    }
+
+    try {
+      while (buffer.position() < end) {
+        int tag = buffer.get() & 0xFF;
+        int length = buffer.getShort() & 0xFFFF;
+
+        if (buffer.position() + length > end) {
+          return null;
+        }
+
+        if (tag == EXTRA) {
+          int keyLength = buffer.get() & 0xFF;
+          String key = getUtf8(buffer, keyLength);
+          map.put(key, getUtf8(buffer, length - 1 - keyLength));
+        } else if ((tag & HEX) != 0 && (tag & ~HEX) > 0 && (tag & ~HEX) < TAGS.length && length == ID_LENGTH) {
+          map.put(TAGS[tag & ~HEX], getHex(buffer));
+        } else if (tag < TAGS.length) {
+          map.put(TAGS[tag], getUtf8(buffer, length));
+        } else {
+          return null;
+        }
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      return null;
+    }
+
+    buffer.position(buffer.limit());
+
+    if (Log.isEnabled(Log.Level.TRACE)) {
+      Log.trace("RECEIVED\n" + BINARY_VERSION + " " + map + "\n");
+    }
+
+    return map;
+  }
+
+  public static boolean validate(Map<String, String> map) {
+    if (map == null || map.get("type") == null) {
+      return false;
+    }
+
+    // frames are checked against the raw bytes as they are decoded
+    if (map.get(VERSION_KEY) != null) {
+      return true;
+    }
+
+    String hash = map.get("hash");
+
+    if (hash == null) {
+      return false;
+    }
+
+    StringBuilder builder = new StringBuilder();
+
+    builder.append("CHATTER/" + VERSION + "\r\n");
+
+    // the hash covers every other field, the map itself is left as decoded
+    List<String> keys = new ArrayList<>(map.keySet());
+    keys.remove("hash");
+    Collections.sort(keys);
+
+    for (String key : keys) {
+      builder.append(key + ":" + map.get(key) + "\r\n");
+    }
+
+    return Hashing.checkHash(hash, builder.toString());
+  }
+
+  /**
+   * Decodes the frame between the buffer's position and limit, in either protocol version, into an envelope. Fields of
+   * binary frames are left in the buffer as views, so the buffer must not be reused while the envelope is in use.
+   * Fields without a slot of their own are dropped.
+   *
+   * @return false if the frame is malformed, its hash does not match, or its type is unknown
+   */
+  public static boolean decode(ByteBuffer buffer, Envelope into) {
+    if (buffer.remaining() > 0 && buffer.get(buffer.position()) == BINARY_MARKER) {
+      return decodeBinary(buffer, into);
+    }
+
+    // text frames are the legacy codec, decoded through a map
+    Map<String, String> map = decode(buffer);
+
+    if (!validate(map)) {
+      return false;
+    }
+
+    MessageType type = MessageType.fromWireName(map.get("type"));
+
+    if (type == null) {
+      return false;
+    }
+
+    into.clear();
+    into.setType(type);
+    into.setVersion(VERSION);
+
+    for (Map.Entry<String, String> e : map.entrySet()) {
+      if (e.getKey().equals("id")) {
+        into.setId(e.getValue());
+        continue;
+      }
+
+      Envelope.Field f = Envelope.Field.fromKey(e.getKey());
+
+      if (f != null) {
+        into.set(f, e.getValue());
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean decodeBinary(ByteBuffer buffer, Envelope into) {
+    int start = buffer.position();
+    int end = buffer.limit() - HASH_LENGTH;
+
+    if (end - start < HEADER_LENGTH || !Hashing.checkDigest(buffer, start, end - start, end)) {
+      return false;
+    }
+
+    MessageType type = MessageType.fromCode(buffer.get(start + 1));
+
+    if (type == null) {
+      return false;
+    }
+
+    into.clear();
+    into.setType(type);
+    into.setVersion(BINARY_VERSION);
+    into.setSource(buffer);
+
+    long high = buffer.getLong(start + 2);
+    long low = buffer.getLong(start + 10);
+    if (high != 0 || low != 0) {
+      into.setId(high, low);
+    }
+
+    for (int p = start + HEADER_LENGTH; p < end; ) {
+      if (p + 3 > end) {
+        return false;
+      }
+
+      int tag = buffer.get(p) & 0xFF;
+      int length = buffer.getShort(p + 1) & 0xFFFF;
+      p += 3;
+
+      if (p + length > end) {
+        return false;
+      }
+
+      Envelope.Field f = Envelope.Field.fromTag(tag & ~HEX);
+
+      if (tag == EXTRA) {
+        // no slot to keep it in
+      } else if (tag == ID_TAG) {
+        into.setId(getUtf8(buffer.duplicate().position(p), length));
+      } else if (f == null) {
+        return false;
+      } else if ((tag & HEX) != 0) {
+        if (length != ID_LENGTH) {
+          return false;
+        }
+        into.set(f, buffer.getLong(p), buffer.getLong(p + 8));
+      } else {
+        into.view(f, p, length);
+      }
+
+      p += length;
+    }
+
+    buffer.position(buffer.limit());
+
+    if (Log.isEnabled(Log.Level.TRACE)) {
+      Log.trace("RECEIVED\n" + BINARY_VERSION + " " + into + "\n");
+    }
+
+    return true;
+  }
+
+  /**
+   * Encodes an envelope as a CHATTER/2.0 binary frame at the buffer's position, advancing it past the frame. Packed
+   * ids, numbers and views are written straight into the buffer.
+   *
+   * @return length of the frame, or -1 if the message has no type or does not fit
+   */
+  public static int encode(Envelope m, ByteBuffer buffer) {
+    if (m.getType() == null) {
+      return -1;
+    }
+
+    if (!m.hasId()) {
+      m.newId();
+    }
+
+    int start = buffer.position();
+
+    try {
+      buffer.put(BINARY_MARKER);
+      buffer.put((byte) m.getType().ordinal());
+
+      boolean packedId = m.isPackedId() || isHexId(m.getId());
+
+      if (m.isPackedId()) {
+        buffer.putLong(m.idHigh());
+        buffer.putLong(m.idLow());
+      } else if (packedId) {
+        putHex(buffer, m.getId());
+      } else {
+        buffer.putLong(0);
+        buffer.putLong(0);
+        putField(buffer, ID_TAG, "id", m.getId());
+      }
+
+      for (Envelope.Field f : FIELDS) {
+        switch (m.kind(f)) {
+          case Envelope.ABSENT:
+            break;
+
+          case Envelope.PACKED:
+            buffer.put((byte) (f.tag() | HEX));
+            buffer.putShort((short) ID_LENGTH);
+            buffer.putLong(m.high(f));
+            buffer.putLong(m.low(f));
+            break;
+
+          case Envelope.VIEW: {
+            ByteBuffer source = m.source();
+            buffer.put((byte) f.tag());
+            buffer.putShort((short) m.length(f));
+
+            for (int p = m.offset(f); p < m.offset(f) + m.length(f); p++) {
+              buffer.put(source.get(p));
+            }
+            break;
+          }
+
+          case Envelope.NUMBER: {
+            buffer.put((byte) f.tag());
+            int lengthAt = buffer.position();
+            buffer.putShort((short) 0);
+            buffer.putShort(lengthAt, (short) putDigits(buffer, m.getLong(f)));
+            break;
+          }
+
+          default:
+            putField(buffer, f.tag(), f.key(), m.get(f));
+            break;
+        }
+      }
+
+      if (!Hashing.putDigest(buffer, start, buffer.position() - start)) {
+        buffer.position(start);
+        return -1;
+      }
+    } catch (BufferOverflowException e) {
+      buffer.position(start);
+      return -1;
+    }
+
+    if (Log.isEnabled(Log.Level.TRACE)) {
+      Log.trace("SENDING\n" + BINARY_VERSION + " " + m + "\n");
+    }
+
+    return buffer.position() - start;
+  }
+
+  /**
+   * Encodes an envelope in the given protocol version, returning a buffer ready to be read. Binary frames are written
+   * into a per-thread buffer which is only valid until the next call on the same thread.
+   */
+  public static ByteBuffer encodeFrame(Envelope m, String version) {
+    if (!BINARY_VERSION.equals(version)) {
+      if (!m.hasId()) {
+        m.newId();
+      }
+
+      byte[] bytes = encode(m.toMap());
+      return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+
+    ByteBuffer buffer = BUFFERS.get();
+    buffer.clear();
+
+    if (encode(m, buffer) < 0) {
+      return null;
+    }
+
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Encodes an envelope in the given protocol version into an array of its own, for frames that are kept.
+   */
+  public static byte[] encode(Envelope m, String version) {
+    ByteBuffer frame = encodeFrame(m, version);
+
+    if (frame == null) {
+      return null;
+    }
+
+    byte[] bytes = new byte[frame.remaining()];
+    frame.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Protocol version a decoded message was received in.
+   */
+  public static String versionOf(Map<String, String> map) {
+    return BINARY_VERSION.equals(map.get(VERSION_KEY)) ? BINARY_VERSION : VERSION;
+  }
+
+  private static void putField(ByteBuffer buffer, String key, String value) {
+    int tag = EXTRA;
+
+    for (int i = 1; i < TAGS.length; i++) {
+      if (TAGS[i].equals(key)) {
+        tag = i;
+        break;
+      }
+    }
+
+    putField(buffer, tag, key, value);
+  }
+
+  private static void putField(ByteBuffer buffer, int tag, String key, String value) {
+    if (value == null) {
+      return;
+    }
+
+    if (tag != EXTRA && isHexId(value)) {
+      buffer.put((byte) (tag | HEX));
+      buffer.putShort((short) ID_LENGTH);
+      putHex(buffer, value);
+      return;
+    }
+
+    buffer.put((byte) tag);
+
+    int lengthAt = buffer.position();
+    buffer.putShort((short) 0);
+
+    int valueAt = buffer.position();
+
+    if (tag == EXTRA) {
+      buffer.put((byte) 0);
+      int keyLength = putUtf8(buffer, key);
+      if (keyLength > 0xFF) {
+        throw new BufferOverflowException();
+      }
+      buffer.put(valueAt, (byte) keyLength);
+    }
+
+    putUtf8(buffer, value);
+
+    int length = buffer.position() - valueAt;
+    if (length > 0xFFFF) {
+      throw new BufferOverflowException();
+    }
+    buffer.putShort(lengthAt, (short) length);
+  }
+
+  /**
+   * Writes a string as UTF-8 straight into the buffer.
+   *
+   * @return number of bytes written
+   */
+  private static int putUtf8(ByteBuffer buffer, String s) {
+    int start = buffer.position();
+
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        buffer.put((byte) (0xF0 | (cp >> 18)));
+        buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (cp & 0x3F)));
+      } else if (Character.isSurrogate(c)) {
+        buffer.put((byte) '?');
+      } else {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+
+    return buffer.position() - start;
+  }
+
+  private static String getUtf8(ByteBuffer buffer, int length) {
+    String s;
+
+    if (buffer.hasArray()) {
+      s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      s = new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    return s;
+  }
+
+  /**
+   * Writes a number as ASCII digits straight into the buffer.
+   *
+   * @return number of digits written
+   */
+  private static int putDigits(ByteBuffer buffer, long value) {
+    if (value < 0) {
+      return putUtf8(buffer, Long.toString(value));
+    }
+
+    int start = buffer.position();
+    long divisor = 1;
+
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+
+    for (; divisor > 0; divisor /= 10) {
+      buffer.put((byte) ('0' + (value / divisor) % 10));
+    }
+
+    return buffer.position() - start;
+  }
+
+  private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+    for (int i = 0; i < prefix.length; i++) {
+      if (bytes[offset + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isHexId(String s) {
+    if (s == null || s.length() != ID_LENGTH * 2) {
+      return false;
+    }
+
+    for (int i = 0; i < s.length(); i++) {
+      if (Character.digit(s.charAt(i), 16) < 0 || Character.isUpperCase(s.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static void putHex(ByteBuffer buffer, String hex) {
+    for (int i = 0; i < ID_LENGTH; i++) {
+      buffer.put((byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) | Character.digit(hex.charAt(2 * i + 1), 16)));
+    }
+  }
+
+  private static String getHex(ByteBuffer buffer) {
+    char[] chars = new char[ID_LENGTH * 2];
+
+    for (int i = 0; i < ID_LENGTH; i++) {
+      int b = buffer.get() & 0xFF;
+      chars[2 * i] = Character.forDigit(b >> 4, 16);
+      chars[2 * i + 1] = Character.forDigit(b & 0xF, 16);
+    }
+
+    return new String(chars);
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> m = new HashMap<>();
+
+    m.put("type", "1234");
+    m.put("hello", "adasdads");
+
+    byte[] b = Message.encode(m);
+
+    System.out.println(b);
+
+    Map<String, String> n = Message.decode(b, b.length);
+
+    System.out.println(n.get("id"));
+    System.out.println(n.get("type"));
+    System.out.println(n.get("hello"));
+    System.out.println(n.get(VERSION_KEY));
+
+    System.out.println(Message.validate(n));
+  }
+}
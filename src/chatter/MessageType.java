@@ -0,0 +1,45 @@
+package chatter;
+
+/**
+ * MessageType enumerates the chatter message types. The ordinal is the type code used by binary frames, so new
+ * types must only ever be appended.
+ *
+ * @version     1.0
+ */
+public enum MessageType {
+  ACK,
+  ERROR,
+  REGISTER,
+  CREDENTIALS,
+  SEND,
+  FORWARD,
+  RECEIVED,
+  FAILED,
+  HEARTBEAT,
+  UNREGISTER,
+  JOIN,
+  LEAVE,
+  POST;
+
+  private static final MessageType[] VALUES = values();
+
+  /**
+   * Name used for the type field of text frames.
+   */
+  public String wireName() {
+    return name().toLowerCase();
+  }
+
+  public static MessageType fromWireName(String name) {
+    for (MessageType t : VALUES) {
+      if (t.wireName().equals(name)) {
+        return t;
+      }
+    }
+    return null;
+  }
+
+  public static MessageType fromCode(int code) {
+    return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+  }
+}
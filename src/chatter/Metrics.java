@@ -0,0 +1,342 @@
+package chatter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Metrics is a process wide registry of counters, gauges and latency histograms.
+ *
+ * Counters are LongAdders so hot paths never contend on a single cache line. Histograms use log-linear buckets in the
+ * style of HdrHistogram: values are grouped by power of two and each group is split into a fixed number of linear
+ * sub-buckets, which bounds the relative error of any percentile at a few percent while recording stays a single
+ * atomic increment.
+ *
+ * Once started, the registry is served as plain text on http://127.0.0.1:chatter.metrics.port/metrics, registered
+ * with JMX as chatter:type=Metrics, and written to the log every chatter.metrics.dump ms. A port or interval of 0
+ * disables that export, and both are 0 unless set.
+ *
+ * @version     1.0
+ */
+public final class Metrics {
+
+  /**
+   * A monotonically increasing count.
+   */
+  public static final class Counter {
+    private final LongAdder adder = new LongAdder();
+
+    public void increment() {
+      adder.increment();
+    }
+
+    public void add(long n) {
+      adder.add(n);
+    }
+
+    public long get() {
+      return adder.sum();
+    }
+  }
+
+  /**
+   * A distribution of non-negative values, typically latencies in microseconds.
+   */
+  public static final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;  // linear sub-buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+
+      counts.incrementAndGet(bucketOf(value));
+      count.increment();
+      sum.add(value);
+
+      long m;
+      while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        // retry
+      }
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public long getMean() {
+      long n = count.sum();
+      return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * Value at or below which the given fraction of recorded values fall, to within the bucket resolution.
+     *
+     * @param p  fraction between 0 and 1
+     */
+    public long percentile(double p) {
+      long n = count.sum();
+
+      if (n == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(p * n));
+      long seen = 0;
+
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+
+        if (seen >= rank) {
+          return Math.min(upperBound(i), max.get());
+        }
+      }
+
+      return max.get();
+    }
+
+    private static int bucketOf(long value) {
+      if (value < SUB) {
+        return (int) value;
+      }
+
+      // value >>> exponent lies in [SUB, 2 * SUB)
+      int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+      int sub = (int) (value >>> exponent) - SUB;
+
+      return (exponent + 1) * SUB + sub;
+    }
+
+    private static long upperBound(int bucket) {
+      if (bucket < SUB) {
+        return bucket;
+      }
+
+      int exponent = bucket / SUB - 1;
+      long sub = bucket % SUB;
+      long upper = ((SUB + sub + 1) << exponent) - 1;
+
+      return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+  }
+
+  private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+  private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+  private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  private static boolean started;
+
+  private Metrics() {}
+
+  public static Counter counter(String name) {
+    return counters.computeIfAbsent(name, (k) -> new Counter());
+  }
+
+  public static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, (k) -> new Histogram());
+  }
+
+  /**
+   * Registers a value which is read whenever the metrics are exported, replacing any gauge of the same name.
+   */
+  public static void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Every metric as name/value pairs, histograms expanded into count, mean, percentiles and max.
+   */
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> out = new TreeMap<>();
+
+    for (Map.Entry<String, Counter> e : counters.entrySet()) {
+      out.put(e.getKey(), e.getValue().get());
+    }
+
+    for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+      out.put(e.getKey(), e.getValue().getAsLong());
+    }
+
+    for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+      Histogram h = e.getValue();
+      out.put(e.getKey() + ".count", h.getCount());
+      out.put(e.getKey() + ".mean", h.getMean());
+      out.put(e.getKey() + ".p50", h.percentile(0.5));
+      out.put(e.getKey() + ".p99", h.percentile(0.99));
+      out.put(e.getKey() + ".p999", h.percentile(0.999));
+      out.put(e.getKey() + ".max", h.getMax());
+    }
+
+    return out;
+  }
+
+  public static String format() {
+    StringBuilder builder = new StringBuilder();
+
+    for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+      builder.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * Starts exporting the registry as configured by the chatter.metrics.port and chatter.metrics.dump system
+   * properties. Only the first call has any effect.
+   */
+  public static synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+
+    int port = Integer.getInteger("chatter.metrics.port", 0);
+    long dump = Long.getLong("chatter.metrics.dump", 0);
+
+    if (port > 0) {
+      startHttp(port);
+    }
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("chatter:type=Metrics"));
+    } catch (JMException e) {
+      Log.warn("failed to register metrics with JMX");
+    }
+
+    if (dump > 0) {
+      Thread dumper = new Thread(() -> {
+        while (true) {
+          try {
+            Thread.sleep(dump);
+          } catch (InterruptedException e) {
+            return;
+          }
+
+          for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            Log.info("metric " + e.getKey() + " " + e.getValue());
+          }
+        }
+      }, "chatter-metrics");
+
+      dumper.setDaemon(true);
+      dumper.start();
+    }
+  }
+
+  private static void startHttp(int port) {
+    HttpServer http;
+
+    try {
+      http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    } catch (IOException e) {
+      Log.error("failed to bind metrics endpoint to port " + port);
+      return;
+    }
+
+    http.createContext("/metrics", (exchange) -> {
+      byte[] body = format().getBytes(StandardCharsets.UTF_8);
+
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+
+    http.start();
+
+    Log.info("serving metrics on http://127.0.0.1:" + port + "/metrics");
+  }
+
+  /**
+   * Exposes the current snapshot as read only JMX attributes.
+   */
+  private static class MBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+      Long value = snapshot().get(name);
+
+      if (value == null) {
+        throw new AttributeNotFoundException(name);
+      }
+
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+      Map<String, Long> snapshot = snapshot();
+      AttributeList list = new AttributeList();
+
+      for (String name : names) {
+        if (snapshot.containsKey(name)) {
+          list.add(new Attribute(name, snapshot.get(name)));
+        }
+      }
+
+      return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+      throw new UnsupportedOperationException("metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String action, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException(action);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      Map<String, Long> snapshot = snapshot();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+
+      int i = 0;
+      for (String name : snapshot.keySet()) {
+        attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+      }
+
+      return new MBeanInfo(Metrics.class.getName(), "chatter server metrics", attributes, null, null, null);
+    }
+  }
+}
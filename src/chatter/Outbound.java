@@ -0,0 +1,25 @@
+package chatter;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Outbound is the path datagrams take out of the server.
+ *
+ * @version     1.0
+ */
+public interface Outbound {
+
+  /**
+   * Sends the bytes between the frame's position and limit. The frame may be reused by the caller once this returns.
+   */
+  void send(ByteBuffer frame, SocketAddress target);
+
+  /**
+   * Sends a frame which may be coalesced with other frames for the same target, if the target is known to be able to
+   * split them apart again.
+   */
+  default void send(ByteBuffer frame, SocketAddress target, boolean coalesce) {
+    send(frame, target);
+  }
+}
@@ -0,0 +1,284 @@
+package chatter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RetransmitScheduler drives retransmission of unacknowledged messages from a single background thread.
+ *
+ * Pending retransmissions are kept in a hashed timing wheel: a ring of buckets that the thread advances one tick at a time,
+ * with delays longer than one revolution counted down in rounds. Scheduling and cancelling by message id are both O(1).
+ * Each expiry retransmits the message and reschedules it with an exponentially growing delay until the retry limit is
+ * reached, at which point the message is abandoned.
+ *
+ * @version     1.0
+ */
+public class RetransmitScheduler {
+
+  /**
+   * Callback invoked by the scheduler for a single outstanding message.
+   */
+  public interface Retransmission {
+
+    /**
+     * Resend the message.
+     *
+     * @param attempt  retransmission number, starting at 1
+     */
+    void retransmit(int attempt);
+
+    /**
+     * Called once the retry limit has been reached without an acknowledgement.
+     */
+    default void abandon() {}
+  }
+
+  private static final int DEFAULT_TICK = 10;  // ms
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+  private static final int DEFAULT_MAX_RETRIES = 8;
+  private static final long DEFAULT_MAX_DELAY = 60000;  // ms
+
+  /**
+   * Longest a message can wait for an ack on a default scheduler before it is abandoned, in ms, given an initial
+   * delay of at most the longest retransmission timeout.
+   */
+  public static final long MAX_SPAN = RttEstimator.MAX_TIMEOUT + DEFAULT_MAX_RETRIES * DEFAULT_MAX_DELAY;
+
+  private final long tick;
+  private final int mask;
+  private final int maxRetries;
+  private final long maxDelay;
+
+  private final Entry[] wheel;
+  private final Map<String, Entry> entries = new HashMap<>();
+  private int cursor = 0;
+
+  private final AtomicLong retransmitted = new AtomicLong();
+  private final AtomicLong abandoned = new AtomicLong();
+
+  public RetransmitScheduler() {
+    this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, DEFAULT_MAX_RETRIES, DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * @param tick        wheel resolution in ms
+   * @param wheelSize   number of buckets, rounded up to a power of two
+   * @param maxRetries  retransmissions attempted before a message is abandoned
+   * @param maxDelay    upper bound in ms for the backed-off delay
+   */
+  public RetransmitScheduler(long tick, int wheelSize, int maxRetries, long maxDelay) {
+    int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+
+    this.tick = tick;
+    this.mask = size - 1;
+    this.maxRetries = maxRetries;
+    this.maxDelay = maxDelay;
+    this.wheel = new Entry[size];
+
+    Thread worker = new Thread(this::loop, "chatter-retransmit");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Schedules retransmission of a message, replacing any retransmission already pending under the same id.
+   *
+   * @param id     message id, used to cancel once acknowledged
+   * @param delay  initial delay in ms before the first retransmission
+   */
+  public void schedule(String id, long delay, Retransmission task) {
+    synchronized (this) {
+      Entry old = entries.remove(id);
+      if (old != null) {
+        unlink(old);
+      }
+
+      Entry e = new Entry(id, task);
+      e.delay = Math.max(delay, tick);
+      entries.put(id, e);
+      link(e);
+    }
+  }
+
+  /**
+   * Cancels the pending retransmission of a message.
+   *
+   * @return true if a retransmission was pending
+   */
+  public synchronized boolean cancel(String id) {
+    Entry e = entries.remove(id);
+
+    if (e == null) {
+      return false;
+    }
+
+    unlink(e);
+    return true;
+  }
+
+  public synchronized boolean isPending(String id) {
+    return entries.containsKey(id);
+  }
+
+  public synchronized void cancelAll() {
+    for (Entry e : entries.values()) {
+      unlink(e);
+    }
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Number of retransmissions made so far.
+   */
+  public long getRetransmitted() {
+    return retransmitted.get();
+  }
+
+  /**
+   * Number of messages given up on after reaching the retry limit.
+   */
+  public long getAbandoned() {
+    return abandoned.get();
+  }
+
+  private void loop() {
+    long next = System.nanoTime();
+
+    while (true) {
+      next += tick * 1000000;
+
+      long sleep = (next - System.nanoTime()) / 1000000;
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+
+      for (Entry e : advance()) {
+        fire(e);
+      }
+    }
+  }
+
+  /**
+   * Moves the cursor one bucket forward and detaches every entry in it whose rounds have run out.
+   */
+  private synchronized List<Entry> advance() {
+    List<Entry> expired = new ArrayList<>();
+
+    cursor = (cursor + 1) & mask;
+
+    Entry e = wheel[cursor];
+    while (e != null) {
+      Entry next = e.next;
+
+      if (e.rounds > 0) {
+        e.rounds--;
+      } else {
+        unlink(e);
+        expired.add(e);
+      }
+
+      e = next;
+    }
+
+    return expired;
+  }
+
+  private void fire(Entry e) {
+    e.attempt++;
+
+    if (e.attempt > maxRetries) {
+      boolean pending;
+      synchronized (this) {
+        pending = entries.remove(e.id, e);
+      }
+
+      if (pending) {
+        abandoned.incrementAndGet();
+        e.task.abandon();
+      }
+      return;
+    }
+
+    // the message may have been acked or rescheduled since advance took it off the wheel
+    synchronized (this) {
+      if (entries.get(e.id) != e) {
+        return;
+      }
+    }
+
+    retransmitted.incrementAndGet();
+    e.task.retransmit(e.attempt);
+
+    synchronized (this) {
+      // the ack may have arrived while we were retransmitting
+      if (entries.get(e.id) == e) {
+        e.delay = Math.min(e.delay * 2, maxDelay);
+        link(e);
+      }
+    }
+  }
+
+  private void link(Entry e) {
+    long ticks = Math.max((e.delay + tick - 1) / tick, 1);
+    int index = (int) ((cursor + ticks) & mask);
+
+    e.rounds = (ticks - 1) / wheel.length;
+    e.bucket = index;
+    e.prev = null;
+    e.next = wheel[index];
+
+    if (e.next != null) {
+      e.next.prev = e;
+    }
+
+    wheel[index] = e;
+  }
+
+  private void unlink(Entry e) {
+    if (e.bucket < 0) {
+      return;
+    }
+
+    if (e.prev != null) {
+      e.prev.next = e.next;
+    } else {
+      wheel[e.bucket] = e.next;
+    }
+
+    if (e.next != null) {
+      e.next.prev = e.prev;
+    }
+
+    e.prev = null;
+    e.next = null;
+    e.bucket = -1;
+  }
+
+  private static class Entry {
+    final String id;
+    final Retransmission task;
+
+    int attempt = 0;
+    long delay;
+    long rounds;
+    int bucket = -1;
+    Entry prev;
+    Entry next;
+
+    Entry(String id, Retransmission task) {
+      this.id = id;
+      this.task = task;
+    }
+  }
+}
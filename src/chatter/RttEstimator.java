@@ -0,0 +1,61 @@
+package chatter;
+
+/**
+ * RttEstimator tracks the round trip time to a single peer and derives the retransmission timeout from it, following
+ * the smoothed mean and deviation estimator of RFC 6298.
+ *
+ * Callers apply Karn's algorithm by only sampling messages that were never retransmitted, since an ack for a
+ * retransmitted message cannot be matched to the transmission it answers.
+ *
+ * @version     1.0
+ */
+public class RttEstimator {
+
+  public static final long INITIAL_TIMEOUT = 1000;  // ms
+  public static final long MIN_TIMEOUT = 100;  // ms
+  public static final long MAX_TIMEOUT = 60000;  // ms
+
+  private static final double ALPHA = 0.125;
+  private static final double BETA = 0.25;
+
+  private double estimated = -1;  // ms, negative until the first sample
+  private double deviation = 0;
+  private long timeout = INITIAL_TIMEOUT;
+
+  /**
+   * Folds in a round trip time measured from a message that was sent exactly once.
+   */
+  public synchronized void sample(long rtt) {
+    if (rtt < 0) {
+      return;
+    }
+
+    if (estimated < 0) {
+      estimated = rtt;
+      deviation = rtt / 2.0;
+    } else {
+      deviation = (1 - BETA) * deviation + BETA * Math.abs(rtt - estimated);
+      estimated = (1 - ALPHA) * estimated + ALPHA * rtt;
+    }
+
+    timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, (long) (estimated + 4 * deviation)));
+  }
+
+  /**
+   * Current retransmission timeout in ms.
+   */
+  public synchronized long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Smoothed round trip time in ms, or -1 before the first sample.
+   */
+  public synchronized long getEstimated() {
+    return (long) estimated;
+  }
+
+  public synchronized long getDeviation() {
+    return (long) deviation;
+  }
+}
@@ -0,0 +1,992 @@
+package chatter;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import java.io.IOException;
+
+public class Server {
+
+  private static final int PORT = 8888;
+  private static final int TIMEOUT = 3000;  // ms
+  private static final int BUFFER_SIZE = 2048;
+  private static final long IDLE_TIMEOUT = Long.getLong("chatter.session.idle", 90000);  // ms
+
+  private static final int MAX_UNACKED = 4096;  // sequenced messages remembered per session
+  private static final int MAILBOX_WINDOW = Integer.getInteger("chatter.mailbox.window", 8);  // letters in flight per session
+
+  // requests with side effects, which are answered from the session's dedup window when retransmitted
+  private static final Set<MessageType> DEDUPLICATED = EnumSet.of(MessageType.SEND, MessageType.POST, MessageType.JOIN, MessageType.LEAVE);
+
+  private static final Metrics.Counter RECEIVED = Metrics.counter("server.datagrams.received");
+  private static final Metrics.Counter FRAMES = Metrics.counter("server.frames");
+  private static final Metrics.Counter INVALID = Metrics.counter("server.frames.invalid");
+  private static final Metrics.Counter UNAUTHORIZED = Metrics.counter("server.frames.unauthorized");
+  private static final Metrics.Counter DUPLICATES = Metrics.counter("server.requests.duplicate");
+  private static final Metrics.Histogram QUEUED = Metrics.histogram("server.latency.dispatch");  // us, receive to handler start
+  private static final Metrics.Histogram TOTAL = Metrics.histogram("server.latency.total");  // us, receive to replies sent
+  private static final Metrics.Histogram RTT = Metrics.histogram("server.rtt");  // ms
+  private static final Metrics.Counter[] REQUESTS = new Metrics.Counter[MessageType.values().length];
+  private static final Metrics.Histogram[] HANDLING = new Metrics.Histogram[MessageType.values().length];  // us, per type
+
+  static {
+    for (MessageType t : MessageType.values()) {
+      REQUESTS[t.ordinal()] = Metrics.counter("server.requests." + t.wireName());
+      HANDLING[t.ordinal()] = Metrics.histogram("server.latency.handle." + t.wireName());
+    }
+  }
+
+  private BufferPool buffers = new BufferPool(BUFFER_SIZE, 4096);
+
+  // sessions and the messages in flight to them are partitioned by token, each shard owned by one event loop
+  private Shard[] shards = Shard.fromProperties();
+
+  // directories shared by all shards
+  private Map<String, Session> users = new ConcurrentHashMap<>();  // username -> session
+  private Map<String, Channel> channels = new ConcurrentHashMap<>();  // name -> channel
+  private Map<String, Channel.Broadcast> broadcasts = new ConcurrentHashMap<>();  // id -> unacknowledged post
+  private Mailbox mailbox;  // null when store-and-forward is unavailable
+
+  /**
+   * Binds the server channels and handles requests until the process exits.
+   *
+   * With chatter.receivers set above one, that many channels are bound to the port with SO_REUSEPORT so the kernel
+   * spreads incoming datagrams across one receiver thread per channel.
+   */
+  public void listen() {
+    Log.info("binding server to wildcard address");
+
+    int receivers = Integer.getInteger("chatter.receivers", 1);
+    DatagramChannel[] channels;
+
+    try {
+      channels = bind(receivers);
+    } catch (IOException e) {
+      Log.error("failed to bind socket to local port");
+      return;
+    }
+
+    try {
+      mailbox = Mailbox.fromProperties();
+    } catch (IOException e) {
+      Log.error("failed to open mailbox, messages to offline users will be refused");
+    }
+
+    startSweeper();
+    startMetrics();
+
+    Log.info("handling requests on " + shards.length + " shard(s)");
+    Log.info("listening for requests on " + channels.length + " channel(s)");
+
+    for (int i = 1; i < channels.length; i++) {
+      DatagramChannel channel = channels[i];
+      Thread t = new Thread(() -> receive(channel), "chatter-receiver-" + i);
+      t.start();
+    }
+
+    receive(channels[0]);
+  }
+
+  private DatagramChannel[] bind(int receivers) throws IOException {
+    DatagramChannel first = DatagramChannel.open(StandardProtocolFamily.INET);
+
+    if (receivers > 1 && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+      Log.warn("SO_REUSEPORT not supported, using a single receiver");
+      receivers = 1;
+    }
+
+    DatagramChannel[] channels = new DatagramChannel[receivers];
+
+    for (int i = 0; i < receivers; i++) {
+      DatagramChannel channel = i == 0 ? first : DatagramChannel.open(StandardProtocolFamily.INET);
+
+      if (receivers > 1) {
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+
+      channel.bind(new InetSocketAddress(PORT));
+      channels[i] = channel;
+    }
+
+    return channels;
+  }
+
+  private void receive(DatagramChannel channel) {
+    Outbound out = BatchingOutbound.fromProperties(new ChannelOutbound(channel));
+
+    while (true) {
+      ByteBuffer buffer = buffers.acquire();
+      SocketAddress from;
+
+      try {
+        from = channel.receive(buffer);
+      } catch(IOException e) {
+        buffers.release(buffer);
+        Log.error("failed to receive from socket");
+        continue;
+      }
+
+      buffer.flip();
+      RECEIVED.increment();
+
+      RequestHandler handler = new RequestHandler(out, buffer, (InetSocketAddress) from, buffers);
+
+      if (!handler.shard.getLoop().dispatch(handler)) {
+        buffers.release(buffer);
+      }
+    }
+  }
+
+  /**
+   * Starts a background thread that evicts sessions which have not been heard from within the idle timeout, so that
+   * clients which disappear without unregistering free their usernames.
+   */
+  private void startSweeper() {
+    Thread sweeper = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(IDLE_TIMEOUT / 3);
+        } catch (InterruptedException e) {
+          return;
+        }
+
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT;
+
+        for (Shard shard : shards) {
+          shard.getLoop().execute(() -> {
+            for (Session s : new ArrayList<>(shard.getSessions().values())) {
+              if (s.getLastSeen() < cutoff) {
+                Log.info("evicting idle session for " + s.getUsername());
+                removeSession(s);
+              }
+            }
+          });
+        }
+      }
+    }, "chatter-sweeper");
+
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /**
+   * Publishes the server's own state as gauges and starts exporting metrics.
+   */
+  private void startMetrics() {
+    Metrics.gauge("server.sessions", () -> sum((s) -> s.getSessions().size()));
+    Metrics.gauge("server.channels", channels::size);
+    Metrics.gauge("server.broadcasts", broadcasts::size);
+    Metrics.gauge("server.inflight", () -> sum((s) -> s.getInflight().size()));
+    Metrics.gauge("server.retransmits.pending", () -> sum((s) -> s.getRetransmits().size()));
+    Metrics.gauge("server.retransmits", () -> sum((s) -> s.getRetransmits().getRetransmitted()));
+    Metrics.gauge("server.retransmits.abandoned", () -> sum((s) -> s.getRetransmits().getAbandoned()));
+    Metrics.gauge("server.dispatch.queue", () -> sum((s) -> s.getLoop().getQueueDepth()));
+    Metrics.gauge("server.dispatch.dispatched", () -> sum((s) -> s.getLoop().getDispatched()));
+    Metrics.gauge("server.dispatch.dropped", () -> sum((s) -> s.getLoop().getDropped()));
+
+    for (Shard shard : shards) {
+      Metrics.gauge("server.shard." + shard.getIndex() + ".queue", shard.getLoop()::getQueueDepth);
+    }
+    Metrics.gauge("server.buffers.allocated", buffers::getAllocated);
+    Metrics.gauge("log.dropped", Log::getDropped);
+
+    Metrics.start();
+  }
+
+  private long sum(ToLongFunction<Shard> f) {
+    long total = 0;
+    for (Shard s : shards) {
+      total += f.applyAsLong(s);
+    }
+    return total;
+  }
+
+  /**
+   * Shard owning a session token.
+   */
+  private Shard shardOf(String token) {
+    return shards[(token.hashCode() & Integer.MAX_VALUE) % shards.length];
+  }
+
+  private Shard shardOf(Session s) {
+    return shardOf(s.getToken());
+  }
+
+  /**
+   * Picks the shard to handle a datagram: the one owning its token, or for registrations, which carry no token yet,
+   * one chosen by source address.
+   */
+  private Shard route(ByteBuffer datagram, InetSocketAddress from) {
+    // fragments and compressed frames are put back together by the shard of the address they came from, then routed
+    // again by token
+    String token = Fragments.isFragment(datagram) || Compression.isCompressed(datagram) ? null : Message.peekToken(datagram);
+
+    if (token != null) {
+      return shardOf(token);
+    }
+
+    return shards[(from == null ? 0 : from.hashCode() & Integer.MAX_VALUE) % shards.length];
+  }
+
+  /**
+   * Runs a task on the shard owning a session.
+   */
+  private void on(Session s, Runnable task) {
+    shardOf(s).getLoop().execute(task);
+  }
+
+  /**
+   * Forgets a session. Must be called on the session's own shard.
+   */
+  private void removeSession(Session s) {
+    shardOf(s).getSessions().remove(s.getToken(), s);
+    users.remove(s.getUsername(), s);
+
+    for (String name : s.getChannels()) {
+      leave(name, s);
+    }
+  }
+
+  /**
+   * Adds a session to a channel, creating the channel if this is its first member.
+   */
+  private boolean join(String name, Session s) {
+    boolean[] joined = new boolean[1];
+
+    channels.compute(name, (k, c) -> {
+      if (c == null) {
+        c = new Channel(k);
+      }
+      joined[0] = c.join(s);
+      return c;
+    });
+
+    if (joined[0]) {
+      s.getChannels().add(name);
+    }
+
+    return joined[0];
+  }
+
+  /**
+   * Removes a session from a channel, dropping the channel once its last member has left.
+   */
+  private boolean leave(String name, Session s) {
+    boolean[] left = new boolean[1];
+
+    channels.computeIfPresent(name, (k, c) -> {
+      left[0] = c.leave(s);
+      return c.isEmpty() ? null : c;
+    });
+
+    s.getChannels().remove(name);
+    return left[0];
+  }
+
+  class RequestHandler implements Runnable {
+
+    private Outbound out;
+    private ByteBuffer buffer;
+    private InetSocketAddress from;
+    private BufferPool pool;
+    private String version = Message.VERSION;
+    private boolean compress = false;
+    private long received = System.nanoTime();
+    private Shard shard;
+
+    // while handling a request that may be retransmitted, the reply to keep for answering duplicates
+    private boolean recording;
+    private byte[] reply;
+
+    /**
+     * @param out     path for replies and forwards
+     * @param buffer  received datagram, between position and limit
+     * @param from    address the datagram came from
+     * @param pool    pool the buffer is returned to once handled, or null
+     */
+    public RequestHandler(Outbound out, ByteBuffer buffer, InetSocketAddress from, BufferPool pool) {
+      this.out = out;
+      this.buffer = buffer;
+      this.from = from;
+      this.pool = pool;
+      this.shard = Server.this.route(buffer, from);
+    }
+
+    @Override
+    public void run() {
+      // when driven directly rather than through the shard's loop, behave as if on it
+      if (!shard.getLoop().inLoop()) {
+        shard.getLoop().runAs(this);
+        return;
+      }
+
+      QUEUED.record((System.nanoTime() - received) / 1000);
+
+      try {
+        handle();
+        TOTAL.record((System.nanoTime() - received) / 1000);
+      } finally {
+        if (pool != null) {
+          pool.release(buffer);
+        }
+      }
+    }
+
+    private void handle() {
+      for (ByteBuffer frame : Message.split(buffer)) {
+        handle(frame);
+      }
+    }
+
+    private void handle(ByteBuffer frame) {
+      if (Fragments.isFragment(frame)) {
+        ByteBuffer whole = shard.getReassembler().offer(from, frame);
+
+        if (whole != null) {
+          RequestHandler handler = new RequestHandler(out, whole, from, null);
+          handler.shard.getLoop().execute(handler);
+        }
+        return;
+      }
+
+      if (Compression.isCompressed(frame)) {
+        ByteBuffer whole = Compression.decompress(frame);
+
+        if (whole == null) {
+          INVALID.increment();
+          return;
+        }
+
+        RequestHandler handler = new RequestHandler(out, whole, from, null);
+        handler.shard.getLoop().execute(handler);
+        return;
+      }
+
+      FRAMES.increment();
+
+      // the request's fields stay in the frame, which is only released once the request has been handled
+      Envelope request = Envelope.acquire();
+
+      try {
+        if (!Message.decode(frame, request)) {
+          INVALID.increment();
+          return;
+        }
+
+        MessageType type = request.getType();
+        long start = System.nanoTime();
+        REQUESTS[type.ordinal()].increment();
+
+        try {
+          handle(request);
+        } finally {
+          HANDLING[type.ordinal()].record((System.nanoTime() - start) / 1000);
+        }
+      } finally {
+        request.release();
+      }
+    }
+
+    private void handle(Envelope request) {
+
+      // reply in whichever protocol version the request arrived in
+      version = request.getVersion();
+
+      Session session = request.has(Envelope.Field.TOKEN) ? shard.getSessions().get(request.get(Envelope.Field.TOKEN)) : null;
+
+      if (request.getType() != MessageType.REGISTER && session == null) {
+        UNAUTHORIZED.increment();
+        error("Invalid or missing authentication token.");
+        return;
+      }
+
+      if (session != null) {
+        session.touch();
+        compress = session.isCompressed();
+      }
+
+      if (session == null || !request.hasId() || !DEDUPLICATED.contains(request.getType())) {
+        execute(request, session);
+        return;
+      }
+
+      // a request retransmitted because its reply was lost gets the same reply again instead of running twice
+      byte[] cached = session.getDedup().lookup(request.getId());
+
+      if (cached != null) {
+        DUPLICATES.increment();
+
+        if (cached.length > 0) {
+          ByteBuffer frame = ByteBuffer.wrap(cached);
+          out.send(compress ? Compression.compress(frame) : frame, from, Message.BINARY_VERSION.equals(version));
+        }
+        return;
+      }
+
+      recording = true;
+      reply = DedupWindow.NO_REPLY;
+
+      try {
+        execute(request, session);
+      } finally {
+        recording = false;
+        session.getDedup().record(request.getId(), reply);
+      }
+    }
+
+    private void execute(Envelope request, Session session) {
+      switch (request.getType()) {
+        case ACK: {
+          if (request.has(Envelope.Field.TARGET)) {
+            acknowledge(request.get(Envelope.Field.TARGET), session);
+          }
+
+          // a cumulative ack covers every sequenced message up to and including it, sack ranges cover those beyond
+          List<String> targets = new ArrayList<>();
+          NavigableMap<Long, String> unacked = session.getUnacked();
+
+          try {
+            if (request.has(Envelope.Field.CUMULATIVE)) {
+              Map<Long, String> covered = unacked.headMap(request.getLong(Envelope.Field.CUMULATIVE), true);
+              targets.addAll(covered.values());
+              covered.clear();
+            }
+
+            if (request.has(Envelope.Field.SACK)) {
+              for (long[] range : AckTracker.parseRanges(request.get(Envelope.Field.SACK))) {
+                Map<Long, String> covered = unacked.subMap(range[0], true, range[1], true);
+                targets.addAll(covered.values());
+                covered.clear();
+              }
+            }
+          } catch (NumberFormatException e) {
+            Log.debug("malformed ack from " + session.getUsername());
+          }
+
+          for (String target : targets) {
+            acknowledge(target, session);
+          }
+
+          break;
+        }
+
+        case REGISTER: {
+          String username = request.get(Envelope.Field.USERNAME);
+
+          if (username == null || username.isEmpty()) {
+            error("Missing username.");
+            return;
+          }
+
+          // a register whose credentials were lost or are late comes again, and the credentials are already being
+          // retransmitted
+          Session registered = Server.this.users.get(username);
+          if (registered != null && registered.isRegisteredBy(request.getId(), from)) {
+            return;
+          }
+
+          // mint a token that routes back to this shard, then claim username, failing if it is already in use
+          String token;
+          do {
+            token = Hashing.generateRandomHash();
+          } while (Server.this.shardOf(token) != shard);
+
+          session = new Session(token, username, from.getAddress(), from.getPort());
+          session.setRegistration(request.getId());
+
+          if (Server.this.users.putIfAbsent(username, session) != null) {
+            error("Username already in use.");
+            return;
+          }
+
+          // switch to the binary codec if the client offered it
+          if (request.is(Envelope.Field.CODEC, Message.BINARY_VERSION)) {
+            session.setVersion(Message.BINARY_VERSION);
+          }
+
+          // and to compressing frames if it offered that too
+          if (request.is(Envelope.Field.COMPRESSION, Compression.NAME)) {
+            session.setCompressed(true);
+          }
+
+          // add to sessions
+          shard.getSessions().put(token, session);
+
+          // marshal and send CREDENTIALS response
+          Envelope response = Envelope.acquire(MessageType.CREDENTIALS);
+          response.set(Envelope.Field.TOKEN, token);
+          response.set(Envelope.Field.CODEC, session.getVersion());
+
+          if (session.isCompressed()) {
+            response.set(Envelope.Field.COMPRESSION, Compression.NAME);
+          }
+
+          deliver(response, session, null);
+          response.release();
+
+          // hand over anything that was sent while they were away, each letter staying in the mailbox until acked
+          if (Server.this.mailbox != null) {
+            Server.this.mailbox.enroll(session.getUsername());
+            drain(session);
+          }
+
+          break;
+        }
+
+        case HEARTBEAT: {
+          // the session was touched above, just let the client know it is still registered
+          ack(request);
+          break;
+        }
+
+        case UNREGISTER: {
+          Server.this.removeSession(session);
+          Log.info("unregistered " + session.getUsername());
+
+          ack(request);
+          break;
+        }
+
+        case SEND: {
+          // check if valid recipient
+          String to = request.get(Envelope.Field.RECIPIENT);
+          Session recipient = to == null ? null : Server.this.users.get(to);
+
+          boolean accepted = false;
+
+          if (recipient != null) {
+            // the forward is tracked by the recipient's shard, which is where its ack will arrive, and the request is
+            // released before it runs so what it needs is taken out now
+            String sender = session.getUsername();
+            String id = request.getId();
+            String text = request.get(Envelope.Field.TEXT);
+            Server.this.on(recipient, () -> forward(sender, id, text, recipient, false));
+            accepted = true;
+          } else if (to != null && Server.this.mailbox != null) {
+            // recipient is offline, hold the message until they next register
+            try {
+              switch (Server.this.mailbox.put(new Mailbox.Letter(request.getId(), session.getUsername(), to, request.get(Envelope.Field.TEXT)))) {
+                case QUEUED:
+                  accepted = true;
+                  break;
+
+                case RECIPIENT_FULL:
+                  error("Recipient's mailbox is full.");
+                  return;
+
+                case FULL:
+                  error("Mailbox is full.");
+                  return;
+
+                default:
+                  break;
+              }
+            } catch (IOException e) {
+              Log.error("failed to queue message for " + to + ": " + e.getMessage());
+            }
+          }
+
+          if (!accepted) {
+            error("Invalid recipient.");
+            return;
+          }
+
+          // send acknowledgement
+          ack(request);
+          break;
+        }
+
+        case JOIN:
+        case LEAVE: {
+          String name = request.get(Envelope.Field.CHANNEL);
+
+          if (name == null || name.isEmpty()) {
+            error("Invalid channel.");
+            return;
+          }
+
+          if (request.getType() == MessageType.JOIN) {
+            Server.this.join(name, session);
+          } else {
+            Server.this.leave(name, session);
+          }
+
+          ack(request);
+          break;
+        }
+
+        case POST: {
+          Channel channel = request.has(Envelope.Field.CHANNEL) ? Server.this.channels.get(request.get(Envelope.Field.CHANNEL)) : null;
+
+          if (channel == null || !channel.isMember(session)) {
+            error("Not a member of channel.");
+            return;
+          }
+
+          broadcast(channel, session, request.get(Envelope.Field.TEXT));
+
+          ack(request);
+          break;
+        }
+
+        default: {
+          Log.error("unknown request type");
+          return;
+        }
+      }
+    }
+
+    /**
+     * Acks a request to the address it came from.
+     */
+    private void ack(Envelope request) {
+      Envelope ack = Envelope.acquire(MessageType.ACK);
+      ack.setToId(Envelope.Field.TARGET, request);
+      send(ack);
+      ack.release();
+    }
+
+    /**
+     * Reports an error to the address the request came from.
+     */
+    private void error(String text) {
+      Envelope response = Envelope.acquire(MessageType.ERROR);
+      response.set(Envelope.Field.TEXT, text);
+      send(response);
+      response.release();
+    }
+  
+    /**
+     * Handles the acknowledgement of a single message.
+     */
+    private void acknowledge(String target, Session session) {
+      // acks for a post only count for the member sending them
+      Channel.Broadcast broadcast = Server.this.broadcasts.get(target);
+
+      if (broadcast != null) {
+        if (broadcast.ack(session)) {
+          if (broadcast.getSent() >= 0) {
+            long rtt = System.currentTimeMillis() - broadcast.getSent();
+            session.getRtt().sample(rtt);
+            RTT.record(rtt);
+          }
+
+          if (broadcast.isComplete() && Server.this.broadcasts.remove(target, broadcast)) {
+            Server.this.shardOf(broadcast.getSender()).getRetransmits().cancel(target);
+          }
+        }
+        return;
+      }
+
+      shard.getRetransmits().cancel(target);
+
+      InFlight.Entry entry = shard.getInflight().remove(target);
+
+      if (entry == null) {
+        return;
+      }
+
+      // ELAPSED, only known if the target was never retransmitted (Karn's algorithm)
+      if (entry.getSent() >= 0) {
+        long rtt = System.currentTimeMillis() - entry.getSent();
+        session.getRtt().sample(rtt);
+        RTT.record(rtt);
+      }
+
+      // if the ack was about a forward then signal a receipt
+      InFlight.Forward f = entry.getForward();
+
+      if (f != null) {
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+          Log.debug("forward " + target + " delivered");
+        }
+
+        if (f.isStored() && Server.this.mailbox != null) {
+          Server.this.mailbox.delivered(f.getSender(), f.getRequestId());
+
+          if (session.getLetters().remove(f)) {
+            drain(session);
+          }
+        }
+
+        // send RECEIVED to sender
+        Session s = Server.this.users.get(f.getSender());
+        if (s != null) {
+          Server.this.on(s, () -> {
+            Envelope received = Envelope.acquire(MessageType.RECEIVED);
+            received.set(Envelope.Field.RECIPIENT, f.getRecipient());
+            received.set(Envelope.Field.TARGET, f.getRequestId());
+            deliver(received, s, null);
+            received.release();
+          });
+        }
+      }
+    }
+
+    /**
+     * Sends a frame to a session, compressed if the session takes compressed frames.
+     */
+    private void send(ByteBuffer frame, Session s) {
+      out.send(s.isCompressed() ? Compression.compress(frame) : frame, s.getSocketAddress(), Message.BINARY_VERSION.equals(s.getVersion()));
+    }
+
+    public void send(Envelope m) {
+      ByteBuffer frame = Message.encodeFrame(m, version);
+
+      if (frame != null) {
+        if (recording) {
+          reply = new byte[frame.remaining()];
+          frame.duplicate().get(reply);
+        }
+
+        out.send(compress ? Compression.compress(frame) : frame, from, Message.BINARY_VERSION.equals(version));
+      }
+    }
+
+    /**
+     * Forwards a message to its recipient, tracking it so the sender can be told once it has been received. Must be
+     * called on the recipient's shard.
+     *
+     * @param sender     username of the sender
+     * @param requestId  id of the sender's send request
+     * @param stored     whether the message is a letter from the mailbox
+     * @return the forward being tracked, or null if the message could not be sent
+     */
+    public InFlight.Forward forward(String sender, String requestId, String text, Session recipient, boolean stored) {
+      Envelope forward = Envelope.acquire(MessageType.FORWARD);
+      forward.set(Envelope.Field.SENDER, sender);
+      forward.set(Envelope.Field.TEXT, text);
+
+      if (Log.isEnabled(Log.Level.DEBUG)) {
+        Log.debug("forwarding " + forward.getId() + " from " + sender + " to " + recipient.getUsername());
+      }
+
+      InFlight.Forward f = new InFlight.Forward(requestId, sender, recipient.getUsername(), stored);
+      boolean sent = deliver(forward, recipient, f);
+      forward.release();
+
+      return sent ? f : null;
+    }
+
+    /**
+     * Forwards the letters waiting in the mailbox for a session, keeping at most MAILBOX_WINDOW of them in flight so
+     * that a long absence does not come back as one burst. The next letter goes out as each one is acked or
+     * abandoned. Must be called on the session's shard.
+     */
+    private void drain(Session s) {
+      Mailbox.Letter l;
+
+      while (s.getLetters().size() < MAILBOX_WINDOW && (l = Server.this.mailbox.poll(s.getUsername())) != null) {
+        InFlight.Forward f = forward(l.getSender(), l.getId(), l.getText(), s, true);
+
+        if (f != null) {
+          s.getLetters().add(f);
+        }
+      }
+    }
+
+    /**
+     * Fans a post out to the other members of a channel. The forward is encoded once per protocol version and
+     * compression in use and the same bytes go to every member; members that have not acked are retried together under the one id.
+     */
+    public void broadcast(Channel channel, Session sender, String text) {
+      // kept by the broadcast until every member has it, so not taken from the pool
+      Envelope forward = new Envelope();
+      forward.setType(MessageType.FORWARD);
+      forward.newId();
+      forward.set(Envelope.Field.SENDER, sender.getUsername());
+      forward.set(Envelope.Field.CHANNEL, channel.getName());
+      forward.set(Envelope.Field.TEXT, text);
+
+      String id = forward.getId();
+
+      Channel.Broadcast b = channel.broadcast(id, forward, sender);
+      Session[] members = b.pending();
+
+      if (members.length == 0) {
+        return;
+      }
+
+      if (Log.isEnabled(Log.Level.DEBUG)) {
+        Log.debug("posting " + id + " from " + sender.getUsername() + " to " + members.length + " members of " + channel.getName());
+      }
+
+      Server.this.broadcasts.put(id, b);
+
+      long timeout = RttEstimator.MIN_TIMEOUT;
+      for (Session s : members) {
+        timeout = Math.max(timeout, s.getRtt().getTimeout());
+      }
+
+      fanOut(b, members);
+
+      // the scheduler calls back on its own thread, so hand the work back to this shard
+      Shard owner = shard;
+      owner.getRetransmits().schedule(id, timeout, new RetransmitScheduler.Retransmission() {
+        @Override
+        public void retransmit(int attempt) {
+          owner.getLoop().execute(() -> {
+            if (Server.this.broadcasts.get(id) == b) {
+              b.retransmitted();
+              fanOut(b, b.pending());
+            }
+          });
+        }
+
+        @Override
+        public void abandon() {
+          owner.getLoop().execute(() -> {
+            if (Server.this.broadcasts.remove(id, b)) {
+              Log.warn("giving up on post " + id + " to " + b.pending().length + " members of " + channel.getName());
+            }
+          });
+        }
+      });
+    }
+
+    private void fanOut(Channel.Broadcast b, Session[] members) {
+      for (Session s : members) {
+        ByteBuffer frame = b.frame(s.getVersion(), s.isCompressed());
+
+        if (frame != null) {
+          out.send(frame.duplicate(), s.getSocketAddress(), Message.BINARY_VERSION.equals(s.getVersion()));
+        }
+      }
+    }
+
+    /**
+     * Numbers a message in its session's sequence, so the client can acknowledge it cumulatively along with others.
+     * Must be called on the session's shard.
+     */
+    public void sequence(Envelope m, Session s) {
+      long seq = s.nextSeq();
+      m.set(Envelope.Field.SEQ, seq);
+
+      NavigableMap<Long, String> unacked = s.getUnacked();
+      unacked.put(seq, m.getId());
+
+      // clients that ack by id never clear their sequence numbers, forget the oldest
+      if (unacked.size() > MAX_UNACKED) {
+        unacked.pollFirstEntry();
+      }
+    }
+
+    /**
+     * Sends a message that must be acknowledged: numbers it in the session's sequence, sends it, tracks it and
+     * schedules its retransmission, timed by the session's own round trip estimate. The message is encoded once and
+     * retransmissions resend the same bytes, so it can be released as soon as this returns. Must be called on the
+     * session's shard, which is where the ack will arrive.
+     *
+     * @param forward  send request the message forwards, or null if it forwards none
+     * @return false if the message could not be encoded and was not sent
+     */
+    public boolean deliver(Envelope m, Session s, InFlight.Forward forward) {
+      sequence(m, s);
+
+      byte[] frame = Message.encode(m, s.getVersion());
+
+      if (frame == null) {
+        return false;
+      }
+
+      send(ByteBuffer.wrap(frame), s);
+
+      String id = m.getId();
+      Shard owner = Server.this.shardOf(s);
+
+      // make room, giving up on whatever had to go
+      for (InFlight.Entry e : owner.getInflight().track(id, forward)) {
+        owner.getRetransmits().cancel(e.getId());
+        fail(e);
+      }
+
+      // the scheduler calls back on its own thread, so hand the work back to the owning shard
+      owner.getRetransmits().schedule(id, s.getRtt().getTimeout(), new RetransmitScheduler.Retransmission() {
+        @Override
+        public void retransmit(int attempt) {
+          owner.getLoop().execute(() -> {
+            // an ack for a retransmitted message is ambiguous, so it must not produce an rtt sample
+            owner.getInflight().retransmitted(id);
+            send(ByteBuffer.wrap(frame), s);
+          });
+        }
+
+        @Override
+        public void abandon() {
+          owner.getLoop().execute(() -> {
+            InFlight.Entry e = owner.getInflight().remove(id);
+            if (e != null) {
+              fail(e);
+            }
+          });
+        }
+      });
+
+      return true;
+    }
+
+    /**
+     * Tells the original sender that a message they sent will not be delivered, or puts a letter back in the mailbox
+     * to be tried again when its recipient next registers.
+     */
+    private void fail(InFlight.Entry e) {
+      InFlight.Forward f = e.getForward();
+
+      if (f == null) {
+        return;
+      }
+
+      if (f.isStored() && Server.this.mailbox != null) {
+        Log.info("returning letter " + f.getRequestId() + " for " + f.getRecipient() + " to the mailbox");
+        Server.this.mailbox.returned(f.getSender(), f.getRequestId());
+
+        // carry on with the next letter if the recipient is still registered
+        Session r = Server.this.users.get(f.getRecipient());
+        if (r != null) {
+          Server.this.on(r, () -> {
+            if (r.getLetters().remove(f)) {
+              drain(r);
+            }
+          });
+        }
+        return;
+      }
+
+      Log.warn("giving up on forward " + e.getId() + " from " + f.getSender() + " to " + f.getRecipient());
+
+      Session s = Server.this.users.get(f.getSender());
+
+      if (s == null) {
+        return;
+      }
+
+      Server.this.on(s, () -> {
+        Envelope failed = Envelope.acquire(MessageType.FAILED);
+        failed.set(Envelope.Field.RECIPIENT, f.getRecipient());
+        failed.set(Envelope.Field.TARGET, f.getRequestId());
+        failed.set(Envelope.Field.TEXT, "Delivery failed.");
+        deliver(failed, s, null);
+        failed.release();
+      });
+    }
+  }
+
+  public static void main(String[] args) {
+    // entry point
+    new Server().listen();
+  }
+}
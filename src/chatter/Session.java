@@ -0,0 +1,145 @@
+package chatter;
+
+import java.util.HashSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Session represents a single user session along with relevant identifiers and network information.
+ *
+ * @version     1.0
+ */
+class Session {
+  private String token;
+  private String username;
+  private InetAddress address;
+  private int port;
+  private InetSocketAddress socketAddress;
+  private RttEstimator rtt = new RttEstimator();
+  private String version = Message.VERSION;
+  private volatile boolean compressed = false;
+  private volatile long lastSeen;
+  private Set<String> channels = ConcurrentHashMap.newKeySet();
+  private DedupWindow dedup = DedupWindow.fromProperties();
+  private long seq = 0;
+  private NavigableMap<Long, String> unacked = new TreeMap<>();  // seq -> message id
+  private Set<InFlight.Forward> letters = new HashSet<>();  // mailbox letters forwarded and not yet acked or abandoned
+  private String registration;  // id of the register request that created the session
+
+  public Session(String token, String username, InetAddress address, int port) {
+    this.token = token;
+    this.username = username;
+    this.address = address;
+    this.port = port;
+    this.socketAddress = new InetSocketAddress(address, port);
+    this.lastSeen = System.currentTimeMillis();
+  }
+
+  public String getToken() {
+    return token;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public InetSocketAddress getSocketAddress() {
+    return socketAddress;
+  }
+
+  /**
+   * Records the id of the register request that created the session, before the session is published.
+   */
+  public void setRegistration(String id) {
+    this.registration = id;
+  }
+
+  /**
+   * Whether a register request is the one that created this session, sent again from the same address.
+   */
+  public boolean isRegisteredBy(String id, InetSocketAddress from) {
+    return registration != null && registration.equals(id) && socketAddress.equals(from);
+  }
+
+  public RttEstimator getRtt() {
+    return rtt;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public void setVersion(String version) {
+    this.version = version;
+  }
+
+  /**
+   * Whether frames sent to this session may be compressed.
+   */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  public void setCompressed(boolean compressed) {
+    this.compressed = compressed;
+  }
+
+  /**
+   * Time in ms the client was last heard from.
+   */
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  public void touch() {
+    lastSeen = System.currentTimeMillis();
+  }
+
+  /**
+   * Next number in the sequence of messages tracked for this session. Only used from the session's shard.
+   */
+  public long nextSeq() {
+    return ++seq;
+  }
+
+  /**
+   * Ids of sequenced messages not yet acknowledged, by sequence number. Only used from the session's shard.
+   */
+  public NavigableMap<Long, String> getUnacked() {
+    return unacked;
+  }
+
+  /**
+   * Mailbox letters forwarded to this session and not yet acked or abandoned. Only used from the session's shard.
+   */
+  public Set<InFlight.Forward> getLetters() {
+    return letters;
+  }
+
+  /**
+   * Recent requests and their replies. Only used from the session's shard.
+   */
+  public DedupWindow getDedup() {
+    return dedup;
+  }
+
+  /**
+   * Names of the channels this session has joined.
+   */
+  public Set<String> getChannels() {
+    return channels;
+  }
+}
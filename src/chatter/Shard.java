@@ -0,0 +1,69 @@
+package chatter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shard owns the sessions whose tokens hash to it, along with the messages in flight to those sessions and their
+ * retransmissions. Its state is only ever touched from its own event loop, so none of it needs to be shared.
+ *
+ * @version     1.0
+ */
+class Shard {
+  private final int index;
+  private final EventLoop loop;
+  private final Map<String, Session> sessions = new HashMap<>();  // token -> session
+  private final InFlight inflight;
+  private final RetransmitScheduler retransmits = new RetransmitScheduler();
+  private final Fragments.Reassembler reassembler = Fragments.Reassembler.fromProperties();
+
+  public Shard(int index, int capacity, InFlight inflight) {
+    this.index = index;
+    this.loop = new EventLoop("chatter-shard-" + index, capacity);
+    this.inflight = inflight;
+  }
+
+  /**
+   * Creates the shards configured by the chatter.shards and chatter.queue system properties, splitting the in-flight
+   * limit between them.
+   */
+  public static Shard[] fromProperties() {
+    int n = Math.max(1, Integer.getInteger("chatter.shards", Runtime.getRuntime().availableProcessors()));
+    int capacity = Integer.getInteger("chatter.queue", 4096);
+
+    Shard[] shards = new Shard[n];
+
+    for (int i = 0; i < n; i++) {
+      shards[i] = new Shard(i, capacity, InFlight.fromProperties(n));
+    }
+
+    return shards;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public EventLoop getLoop() {
+    return loop;
+  }
+
+  public Map<String, Session> getSessions() {
+    return sessions;
+  }
+
+  public InFlight getInflight() {
+    return inflight;
+  }
+
+  public RetransmitScheduler getRetransmits() {
+    return retransmits;
+  }
+
+  /**
+   * Frames being reassembled from fragments sent by addresses routed to this shard.
+   */
+  public Fragments.Reassembler getReassembler() {
+    return reassembler;
+  }
+}
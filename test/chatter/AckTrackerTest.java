@@ -0,0 +1,197 @@
+package chatter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Cumulative and selective acks built by the tracker, and the sack ranges the server parses out of them.
+ */
+class AckTrackerTest {
+
+  static void testInOrderMessagesAdvanceTheCumulativeAck() {
+    AckTracker acks = new AckTracker();
+
+    for (long seq = 1; seq <= 5; seq++) {
+      Tests.check(acks.receive(seq), "fresh message " + seq + " taken for a duplicate");
+    }
+
+    Envelope ack = fill(acks);
+    Tests.equal(5L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.check(!ack.has(Envelope.Field.SACK), "sack without a gap");
+  }
+
+  static void testMessagesBeyondAGapAreSacked() {
+    AckTracker acks = new AckTracker();
+
+    receive(acks, 1, 2, 4, 5, 6, 9);
+
+    Envelope ack = fill(acks);
+    Tests.equal(2L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.equal("4-6,9-9", ack.get(Envelope.Field.SACK));
+  }
+
+  static void testFillingAGapFoldsTheRangesIntoTheCumulativeAck() {
+    AckTracker acks = new AckTracker();
+
+    receive(acks, 1, 3, 4, 6);
+    receive(acks, 2);
+
+    Envelope ack = fill(acks);
+    Tests.equal(4L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.equal("6-6", ack.get(Envelope.Field.SACK));
+
+    receive(acks, 5);
+
+    ack = fill(acks);
+    Tests.equal(6L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.check(!ack.has(Envelope.Field.SACK), "sack once every gap is filled");
+  }
+
+  static void testRetransmissionsAreReportedAsDuplicates() {
+    AckTracker acks = new AckTracker();
+
+    receive(acks, 1, 2, 5);
+
+    Tests.check(!acks.receive(1), "duplicate below the cumulative ack taken for fresh");
+    Tests.check(!acks.receive(5), "duplicate beyond the gap taken for fresh");
+    Tests.check(acks.receive(3), "fresh message in the gap taken for a duplicate");
+  }
+
+  static void testPendingCountsEveryMessageSinceTheLastAck() {
+    AckTracker acks = new AckTracker();
+
+    receive(acks, 1, 2);
+    acks.receive(2);
+    Tests.equal(3, acks.getPending());
+
+    fill(acks);
+    Tests.equal(0, acks.getPending());
+  }
+
+  static void testAGapIsOnlyGivenUpOnOnceTheServerHasStoppedRetrying() {
+    AckTracker acks = new AckTracker();
+
+    // 1 is lost for good, everything after it arrives
+    for (long seq = 2; seq <= 10; seq++) {
+      acks.receive(seq, 0);
+    }
+
+    Tests.check(acks.receive(11, AckTracker.GAP_TIMEOUT - 1), "fresh message beyond the gap taken for a duplicate");
+    Tests.equal(0L, fill(acks).getLong(Envelope.Field.CUMULATIVE));
+
+    Tests.check(acks.receive(12, AckTracker.GAP_TIMEOUT), "fresh message after the gap was given up on refused");
+
+    Envelope ack = fill(acks);
+    Tests.equal(12L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.check(!ack.has(Envelope.Field.SACK), "sack after the gap was given up on");
+  }
+
+  static void testAGapThatFillsLateIsNotGivenUpOn() {
+    AckTracker acks = new AckTracker();
+
+    acks.receive(2, 0);
+    acks.receive(4, 0);
+    Tests.check(acks.receive(1, AckTracker.GAP_TIMEOUT - 1), "message filling the gap refused");
+
+    // the wait for 3 started when 1 closed the gap before it
+    acks.receive(5, 2 * AckTracker.GAP_TIMEOUT - 2);
+
+    Envelope ack = fill(acks);
+    Tests.equal(2L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.equal("4-5", ack.get(Envelope.Field.SACK));
+  }
+
+  static void testMessagesTooFarBeyondAGapAreRefusedRatherThanAcked() {
+    AckTracker acks = new AckTracker();
+
+    // 1 is still being retried by the server while everything after it arrives
+    long last = AckTracker.MAX_AHEAD + 1;
+    for (long seq = 2; seq <= last; seq++) {
+      Tests.check(acks.receive(seq, 0), "fresh message " + seq + " refused");
+    }
+
+    Tests.check(!acks.receive(last + 1, 0), "message beyond a full window kept");
+    Tests.check(!acks.receive(last + 1, 0), "refused message taken for fresh");
+
+    Envelope ack = fill(acks);
+    Tests.equal(0L, ack.getLong(Envelope.Field.CUMULATIVE));
+    for (long[] range : AckTracker.parseRanges(ack.get(Envelope.Field.SACK))) {
+      Tests.check(range[0] > 1 && range[1] <= last, "ack covers a message that never arrived");
+    }
+
+    // filling the gap makes room again
+    Tests.check(acks.receive(1, 0), "message filling the gap refused");
+    Tests.check(acks.receive(last + 1, 0), "message after the gap closed refused");
+    Tests.equal(last + 1, fill(acks).getLong(Envelope.Field.CUMULATIVE));
+  }
+
+  static void testLargeSequenceNumbersKeepTheirOrder() {
+    // sequence numbers are 64 bit and never wrap, so ranges near the top of the space behave like any other
+    AckTracker acks = new AckTracker();
+    long top = Long.MAX_VALUE - 10;
+
+    receive(acks, 1);
+    receive(acks, top, top + 1, top + 3);
+
+    Envelope ack = fill(acks);
+    Tests.equal(1L, ack.getLong(Envelope.Field.CUMULATIVE));
+    Tests.equal(top + "-" + (top + 1) + "," + (top + 3) + "-" + (top + 3), ack.get(Envelope.Field.SACK));
+
+    List<long[]> ranges = AckTracker.parseRanges(ack.get(Envelope.Field.SACK));
+    Tests.equal(2, ranges.size());
+    Tests.check(Arrays.equals(new long[] { top + 3, top + 3 }, ranges.get(1)), "range past a gap near the top lost");
+  }
+
+  static void testAtMostMaxRangesAreFormatted() {
+    TreeSet<Long> seqs = new TreeSet<>();
+
+    for (long seq = 2; seq <= 2 * (AckTracker.MAX_RANGES + 4); seq += 2) {
+      seqs.add(seq);
+    }
+
+    List<long[]> ranges = AckTracker.parseRanges(AckTracker.formatRanges(seqs));
+    Tests.equal(AckTracker.MAX_RANGES, ranges.size());
+    Tests.check(Arrays.equals(new long[] { 2, 2 }, ranges.get(0)), "first range wrong");
+  }
+
+  static void testParsesRangesAndIgnoresThoseBeyondTheLimit() {
+    Tests.equal(0, AckTracker.parseRanges(null).size());
+    Tests.equal(0, AckTracker.parseRanges("").size());
+
+    List<long[]> ranges = AckTracker.parseRanges("4-6,9-9");
+    Tests.equal(2, ranges.size());
+    Tests.check(Arrays.equals(new long[] { 4, 6 }, ranges.get(0)), "first range wrong");
+    Tests.check(Arrays.equals(new long[] { 9, 9 }, ranges.get(1)), "second range wrong");
+
+    StringBuilder many = new StringBuilder("1-1");
+    for (int i = 2; i <= AckTracker.MAX_RANGES + 5; i++) {
+      many.append(',').append(i).append('-').append(i);
+    }
+    Tests.equal(AckTracker.MAX_RANGES, AckTracker.parseRanges(many.toString()).size());
+  }
+
+  static void testRejectsMalformedRanges() {
+    for (String sack : new String[] { "4", "6-4", "a-b", "4-6,7" }) {
+      try {
+        AckTracker.parseRanges(sack);
+        throw new AssertionError("accepted " + sack);
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+
+  private static void receive(AckTracker acks, long... seqs) {
+    for (long seq : seqs) {
+      acks.receive(seq);
+    }
+  }
+
+  private static Envelope fill(AckTracker acks) {
+    Envelope ack = new Envelope();
+    ack.setType(MessageType.ACK);
+    acks.fill(ack);
+    return ack;
+  }
+}
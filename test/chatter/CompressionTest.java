@@ -0,0 +1,112 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compressing frames and inflating them again, and refusing frames that are too large or malformed.
+ */
+class CompressionTest {
+
+  static void testRoundTripsATextFrame() {
+    ByteBuffer frame = frame("hey, are we still on for lunch tomorrow? ".repeat(20));
+    ByteBuffer compressed = copy(Compression.compress(frame.duplicate()));
+
+    Tests.check(Compression.isCompressed(compressed), "not compressed");
+    Tests.check(compressed.remaining() < frame.remaining(), "no smaller: " + compressed.remaining() + " bytes");
+    Tests.equal(frame, Compression.decompress(compressed));
+  }
+
+  static void testRoundTripsABinaryFrame() {
+    Envelope m = Envelope.acquire(MessageType.FORWARD);
+    m.set(Envelope.Field.SENDER, "alice");
+    m.set(Envelope.Field.TEXT, "the quick brown fox jumps over the lazy dog ".repeat(10));
+
+    ByteBuffer frame = ByteBuffer.wrap(Message.encode(m, Message.BINARY_VERSION));
+    m.release();
+
+    ByteBuffer compressed = copy(Compression.compress(frame.duplicate()));
+    Tests.check(Compression.isCompressed(compressed), "not compressed");
+    Tests.equal(frame, Compression.decompress(compressed));
+  }
+
+  static void testLeavesTheInputUntouched() {
+    ByteBuffer frame = frame("x".repeat(1000));
+    frame.position(10);
+
+    Compression.compress(frame);
+
+    Tests.equal(10, frame.position());
+    Tests.equal(1000, frame.limit());
+  }
+
+  static void testSmallFramesAreNotCompressed() {
+    ByteBuffer frame = frame("hi");
+    Tests.check(Compression.compress(frame) == frame, "compressed a frame below the threshold");
+  }
+
+  static void testIncompressibleFramesAreSentAsTheyAre() {
+    byte[] noise = new byte[2000];
+    new Random(42).nextBytes(noise);
+    ByteBuffer frame = ByteBuffer.wrap(noise);
+
+    Tests.check(Compression.compress(frame) == frame, "compressed random bytes");
+  }
+
+  static void testOversizeFramesAreNotCompressed() {
+    ByteBuffer frame = frame("x".repeat(65537));
+    Tests.check(Compression.compress(frame) == frame, "compressed a frame beyond the largest there is");
+  }
+
+  static void testRejectsClaimedLengthsOutOfRange() {
+    ByteBuffer compressed = copy(Compression.compress(frame("y".repeat(1000))));
+
+    compressed.putInt(1, 65537);
+    Tests.check(Compression.decompress(compressed) == null, "inflated beyond the largest frame");
+
+    compressed.putInt(1, 0);
+    Tests.check(Compression.decompress(compressed) == null, "inflated to nothing");
+
+    compressed.putInt(1, -1);
+    Tests.check(Compression.decompress(compressed) == null, "inflated to a negative length");
+  }
+
+  static void testRejectsFramesThatInflateToOtherThanTheirLength() {
+    ByteBuffer compressed = copy(Compression.compress(frame("z".repeat(1000))));
+
+    compressed.putInt(1, 999);
+    Tests.check(Compression.decompress(compressed) == null, "inflated past the claimed length");
+
+    compressed.putInt(1, 1001);
+    Tests.check(Compression.decompress(compressed) == null, "inflated short of the claimed length");
+  }
+
+  static void testRejectsTruncatedAndCorruptFrames() {
+    ByteBuffer compressed = copy(Compression.compress(frame("hello there ".repeat(100))));
+
+    ByteBuffer truncated = compressed.duplicate();
+    truncated.limit(truncated.limit() - 4);
+    Tests.check(Compression.decompress(truncated) == null, "inflated a truncated frame");
+
+    ByteBuffer corrupt = copy(compressed);
+    for (int i = Compression.OVERHEAD; i < corrupt.limit(); i++) {
+      corrupt.put(i, (byte) 0xFF);
+    }
+    Tests.check(Compression.decompress(corrupt) == null, "inflated garbage");
+  }
+
+  private static ByteBuffer frame(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Copies a frame out of the per-thread buffer it is compressed into.
+   */
+  private static ByteBuffer copy(ByteBuffer b) {
+    ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+    copy.put(b.duplicate());
+    copy.flip();
+    return copy;
+  }
+}
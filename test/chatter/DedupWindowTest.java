@@ -0,0 +1,63 @@
+package chatter;
+
+/**
+ * Lookups, eviction of the oldest ids and expiry in the dedup window.
+ */
+class DedupWindowTest {
+
+  static void testRemembersRepliesByRequestId() {
+    DedupWindow window = new DedupWindow(4, 60000);
+    byte[] reply = { 1, 2, 3 };
+
+    window.record("a", reply);
+    window.record("b", DedupWindow.NO_REPLY);
+
+    Tests.check(window.lookup("a") == reply, "wrong reply for a");
+    Tests.check(window.lookup("b") == DedupWindow.NO_REPLY, "wrong reply for b");
+    Tests.check(window.lookup("c") == null, "unseen id found");
+  }
+
+  static void testForgetsTheOldestOnceFull() {
+    DedupWindow window = new DedupWindow(3, 60000);
+
+    window.record("a", DedupWindow.NO_REPLY);
+    window.record("b", DedupWindow.NO_REPLY);
+    window.record("c", DedupWindow.NO_REPLY);
+    window.record("d", DedupWindow.NO_REPLY);
+
+    Tests.check(window.lookup("a") == null, "oldest id kept");
+    Tests.check(window.lookup("b") != null && window.lookup("c") != null && window.lookup("d") != null, "newer ids lost");
+    Tests.equal(3, window.size());
+
+    window.record("e", DedupWindow.NO_REPLY);
+    Tests.check(window.lookup("b") == null, "second oldest id kept");
+    Tests.equal(3, window.size());
+  }
+
+  static void testRecordingAnIdAgainUpdatesItInPlace() {
+    DedupWindow window = new DedupWindow(2, 60000);
+    byte[] reply = { 1 };
+
+    window.record("a", DedupWindow.NO_REPLY);
+    window.record("b", DedupWindow.NO_REPLY);
+    window.record("a", reply);
+
+    // a kept its slot, so nothing was evicted and it is still the oldest
+    Tests.check(window.lookup("a") == reply, "reply not updated");
+    Tests.check(window.lookup("b") != null, "b evicted by an update");
+
+    window.record("c", DedupWindow.NO_REPLY);
+    Tests.check(window.lookup("a") == null, "a outlived its slot");
+    Tests.check(window.lookup("b") != null, "b evicted before a");
+  }
+
+  static void testIdsOlderThanTheTimeToLiveAreUnseen() throws InterruptedException {
+    DedupWindow window = new DedupWindow(4, 20);
+
+    window.record("a", DedupWindow.NO_REPLY);
+    Tests.check(window.lookup("a") != null, "fresh id unseen");
+
+    Thread.sleep(40);
+    Tests.check(window.lookup("a") == null, "expired id still seen");
+  }
+}
@@ -0,0 +1,148 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Envelope slots: views into a decoded frame, numbers parsed in place, packed ids and the per-thread pool.
+ */
+class EnvelopeTest {
+
+  private static final String HEX_ID = "0123456789abcdef0123456789abcdef";
+
+  static void testDecodedFieldsAreViewsOfTheFrame() {
+    Envelope m = Envelope.acquire(MessageType.SEND);
+    m.set(Envelope.Field.RECIPIENT, "bob");
+    m.set(Envelope.Field.TEXT, "hello");
+    ByteBuffer frame = ByteBuffer.wrap(Message.encode(m, Message.BINARY_VERSION));
+    m.release();
+
+    Envelope n = new Envelope();
+    Tests.check(Message.decode(frame, n), "frame not decoded");
+
+    Tests.equal(Envelope.VIEW, n.kind(Envelope.Field.TEXT));
+    Tests.check(n.is(Envelope.Field.RECIPIENT, "bob"), "view not compared in place");
+    Tests.check(!n.is(Envelope.Field.RECIPIENT, "bobby"), "longer value matched a view");
+    Tests.check(!n.is(Envelope.Field.RECIPIENT, "rob"), "different value matched a view");
+
+    // a view is read from the frame when first asked for, and kept once it has been
+    frame.put(n.offset(Envelope.Field.TEXT), (byte) 'j');
+    Tests.equal("jello", n.get(Envelope.Field.TEXT));
+    frame.put(n.offset(Envelope.Field.TEXT), (byte) 'y');
+    Tests.equal("jello", n.get(Envelope.Field.TEXT));
+  }
+
+  static void testNumbersAreParsedInPlace() {
+    Envelope m = Envelope.acquire(MessageType.ACK);
+    m.set(Envelope.Field.CUMULATIVE, 0);
+    m.set(Envelope.Field.SEQ, 123456789012345678L);
+
+    Envelope n = new Envelope();
+    Tests.check(Message.decode(ByteBuffer.wrap(Message.encode(m, Message.BINARY_VERSION)), n), "frame not decoded");
+    m.release();
+
+    Tests.equal(Envelope.VIEW, n.kind(Envelope.Field.SEQ));
+    Tests.equal(123456789012345678L, n.getLong(Envelope.Field.SEQ));
+    Tests.equal(0L, n.getLong(Envelope.Field.CUMULATIVE));
+    Tests.equal("123456789012345678", n.get(Envelope.Field.SEQ));
+  }
+
+  static void testMalformedNumbersAreRejected() {
+    for (String value : new String[] { "", "12a", "-5", "1234567890123456789" }) {
+      Envelope m = Envelope.acquire(MessageType.ACK);
+      m.set(Envelope.Field.SEQ, value);
+
+      Envelope n = new Envelope();
+      Tests.check(Message.decode(ByteBuffer.wrap(Message.encode(m, Message.BINARY_VERSION)), n), "frame not decoded");
+      m.release();
+
+      try {
+        n.getLong(Envelope.Field.SEQ);
+        throw new AssertionError("parsed \"" + value + "\"");
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+
+    try {
+      new Envelope().getLong(Envelope.Field.SEQ);
+      throw new AssertionError("parsed a missing field");
+    } catch (NumberFormatException e) {
+      // expected
+    }
+  }
+
+  static void testNumbersAndStringsReadBackAsSet() {
+    Envelope m = new Envelope();
+
+    m.set(Envelope.Field.SEQ, 7);
+    Tests.equal(Envelope.NUMBER, m.kind(Envelope.Field.SEQ));
+    Tests.equal("7", m.get(Envelope.Field.SEQ));
+
+    m.set(Envelope.Field.SEQ, "8");
+    Tests.equal(8L, m.getLong(Envelope.Field.SEQ));
+
+    m.set(Envelope.Field.SEQ, null);
+    Tests.check(!m.has(Envelope.Field.SEQ), "field set to null kept");
+  }
+
+  static void testSetToIdCopiesTheIdWithoutMakingItAString() {
+    Envelope request = new Envelope();
+    request.setType(MessageType.SEND);
+    request.setId(HEX_ID);
+
+    Envelope packed = new Envelope();
+    Tests.check(Message.decode(ByteBuffer.wrap(Message.encode(request, Message.BINARY_VERSION)), packed), "frame not decoded");
+
+    Envelope ack = new Envelope();
+    ack.setToId(Envelope.Field.TARGET, packed);
+    Tests.equal(Envelope.PACKED, ack.kind(Envelope.Field.TARGET));
+    Tests.equal(HEX_ID, ack.get(Envelope.Field.TARGET));
+
+    request.setId("request-1");
+    ack.setToId(Envelope.Field.TARGET, request);
+    Tests.equal(Envelope.STRING, ack.kind(Envelope.Field.TARGET));
+    Tests.equal("request-1", ack.get(Envelope.Field.TARGET));
+  }
+
+  static void testToMapHoldsTypeIdAndFields() {
+    Envelope m = new Envelope();
+    m.setType(MessageType.POST);
+    m.setId(HEX_ID);
+    m.set(Envelope.Field.CHANNEL, "#general");
+    m.set(Envelope.Field.SEQ, 3);
+
+    Map<String, String> map = m.toMap();
+    Tests.equal(4, map.size());
+    Tests.equal("post", map.get("type"));
+    Tests.equal(HEX_ID, map.get("id"));
+    Tests.equal("#general", map.get("channel"));
+    Tests.equal("3", map.get("seq"));
+  }
+
+  static void testReleasedEnvelopesAreClearedAndReused() {
+    Envelope m = Envelope.acquire(MessageType.SEND);
+    m.set(Envelope.Field.TEXT, "hello");
+    m.release();
+    m.release();
+
+    Envelope n = Envelope.acquire();
+    Tests.check(n == m, "released envelope not reused");
+    Tests.check(n.getType() == null && !n.hasId(), "reused envelope not cleared");
+    Tests.check(!n.has(Envelope.Field.TEXT), "reused envelope kept a field");
+
+    // released twice, but only pooled once
+    Tests.check(Envelope.acquire() != n, "envelope handed out twice");
+  }
+
+  static void testFieldsMapToTheirKeysAndTags() {
+    for (Envelope.Field f : Envelope.Field.values()) {
+      Tests.equal(f, Envelope.Field.fromTag(f.tag()));
+      Tests.equal(f, Envelope.Field.fromKey(f.key()));
+    }
+
+    Tests.equal(null, Envelope.Field.fromTag(0));
+    Tests.equal(null, Envelope.Field.fromTag(Envelope.Field.values().length + 1));
+    Tests.equal(null, Envelope.Field.fromKey("id"));
+  }
+}
@@ -0,0 +1,186 @@
+package chatter;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splitting frames into fragments and reassembling them, whatever order they arrive in, along with the limits on
+ * partly received frames.
+ */
+class FragmentsTest {
+
+  private static final int SIZE = 100;
+  private static final SocketAddress ALICE = new InetSocketAddress("127.0.0.1", 40001);
+  private static final SocketAddress BOB = new InetSocketAddress("127.0.0.1", 40002);
+
+  static void testFramesThatFitGoOutWhole() {
+    ByteBuffer frame = frame(SIZE);
+    List<ByteBuffer> sent = new ArrayList<>();
+
+    Tests.check(Fragments.split(frame, SIZE, sent::add), "split refused a small frame");
+    Tests.equal(1, sent.size());
+    Tests.check(sent.get(0) == frame, "small frame was copied");
+  }
+
+  static void testFramesTooLargeToFragmentAreRefused() {
+    ByteBuffer frame = frame((SIZE - Fragments.OVERHEAD) * Fragments.MAX_FRAGMENTS + 1);
+    List<ByteBuffer> sent = new ArrayList<>();
+
+    Tests.check(!Fragments.split(frame, SIZE, sent::add), "split an oversize frame");
+    Tests.equal(0, sent.size());
+  }
+
+  static void testReassemblesFragmentsInOrder() {
+    ByteBuffer frame = frame(1000);
+    List<ByteBuffer> fragments = split(frame);
+
+    Tests.equal(11, fragments.size());
+    Tests.equal(frame, reassemble(new Fragments.Reassembler(1 << 20, 60000), ALICE, fragments));
+  }
+
+  static void testReassemblesFragmentsOutOfOrder() {
+    ByteBuffer frame = frame(1000);
+    List<ByteBuffer> fragments = split(frame);
+
+    Collections.reverse(fragments);
+    Collections.swap(fragments, 2, 7);
+
+    Tests.equal(frame, reassemble(new Fragments.Reassembler(1 << 20, 60000), ALICE, fragments));
+  }
+
+  static void testDuplicateFragmentsAreIgnored() {
+    ByteBuffer frame = frame(500);
+    List<ByteBuffer> fragments = split(frame);
+    Fragments.Reassembler reassembler = new Fragments.Reassembler(1 << 20, 60000);
+
+    Tests.check(reassembler.offer(ALICE, fragments.get(0)) == null, "one fragment completed a frame");
+    Tests.check(reassembler.offer(ALICE, fragments.get(0)) == null, "a duplicate completed a frame");
+
+    List<ByteBuffer> rest = fragments.subList(1, fragments.size());
+    Tests.equal(frame, reassemble(reassembler, ALICE, rest));
+    Tests.equal(0, reassembler.size());
+  }
+
+  static void testGroupsFromDifferentSendersAreKeptApart() {
+    ByteBuffer frame = frame(500);
+    List<ByteBuffer> fragments = split(frame);
+    Fragments.Reassembler reassembler = new Fragments.Reassembler(1 << 20, 60000);
+
+    // the same group from two addresses is two frames, each missing its last fragment
+    for (int i = 0; i < fragments.size() - 1; i++) {
+      reassembler.offer(ALICE, fragments.get(i));
+      reassembler.offer(BOB, fragments.get(i));
+    }
+
+    Tests.equal(2, reassembler.size());
+    Tests.equal(frame, reassembler.offer(BOB, fragments.get(fragments.size() - 1)));
+    Tests.equal(1, reassembler.size());
+  }
+
+  static void testPartlyReceivedFramesExpire() throws InterruptedException {
+    ByteBuffer frame = frame(500);
+    List<ByteBuffer> fragments = split(frame);
+    Fragments.Reassembler reassembler = new Fragments.Reassembler(1 << 20, 20);
+
+    reassembler.offer(ALICE, fragments.get(0));
+    Tests.equal(1, reassembler.size());
+
+    Thread.sleep(40);
+
+    // the late fragments start over, and without the first one the frame never completes
+    for (ByteBuffer f : fragments.subList(1, fragments.size())) {
+      Tests.check(reassembler.offer(ALICE, f) == null, "an expired frame completed");
+    }
+
+    Tests.equal(1, reassembler.size());
+  }
+
+  static void testOldestFramesAreGivenUpWhenOutOfMemory() {
+    List<ByteBuffer> first = split(frame(500));
+    List<ByteBuffer> second = split(frame(500));
+
+    // room for a little more than one frame
+    Fragments.Reassembler reassembler = new Fragments.Reassembler(600, 60000);
+
+    for (ByteBuffer f : first.subList(0, first.size() - 1)) {
+      reassembler.offer(ALICE, f);
+    }
+    for (ByteBuffer f : second.subList(0, second.size() - 1)) {
+      reassembler.offer(BOB, f);
+    }
+
+    Tests.equal(1, reassembler.size());
+    Tests.check(reassembler.offer(ALICE, first.get(first.size() - 1)) == null, "an evicted frame completed");
+    Tests.check(reassembler.offer(BOB, second.get(second.size() - 1)) != null, "the newest frame was evicted");
+  }
+
+  static void testMalformedFragmentsAreDropped() {
+    List<ByteBuffer> fragments = split(frame(500));
+    Fragments.Reassembler reassembler = new Fragments.Reassembler(1 << 20, 60000);
+
+    // an index past the count
+    ByteBuffer bad = copy(fragments.get(0));
+    bad.putShort(5, (short) 99);
+    Tests.check(reassembler.offer(ALICE, bad) == null, "accepted an index past the count");
+    Tests.equal(0, reassembler.size());
+
+    // a count that disagrees with the rest of its group
+    reassembler.offer(ALICE, fragments.get(0));
+    ByteBuffer other = copy(fragments.get(1));
+    other.putShort(7, (short) (fragments.size() + 1));
+    Tests.check(reassembler.offer(ALICE, other) == null, "accepted a mismatched count");
+
+    Tests.check(reassembler.offer(ALICE, fragments.get(1)) == null, "completed early");
+  }
+
+  /**
+   * A frame of recognisable bytes.
+   */
+  private static ByteBuffer frame(int length) {
+    ByteBuffer frame = ByteBuffer.allocate(length);
+
+    for (int i = 0; i < length; i++) {
+      frame.put((byte) (i * 31));
+    }
+
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * Splits a frame, copying each fragment out of the scratch buffer it is handed over in.
+   */
+  private static List<ByteBuffer> split(ByteBuffer frame) {
+    List<ByteBuffer> fragments = new ArrayList<>();
+    Fragments.split(frame.duplicate(), SIZE, (f) -> fragments.add(copy(f)));
+
+    for (ByteBuffer f : fragments) {
+      Tests.check(Fragments.isFragment(f), "not marked as a fragment");
+      Tests.check(f.remaining() <= SIZE, "fragment of " + f.remaining() + " bytes");
+    }
+
+    return fragments;
+  }
+
+  private static ByteBuffer reassemble(Fragments.Reassembler reassembler, SocketAddress from, List<ByteBuffer> fragments) {
+    ByteBuffer frame = null;
+
+    for (int i = 0; i < fragments.size(); i++) {
+      frame = reassembler.offer(from, fragments.get(i));
+      Tests.check((frame != null) == (i == fragments.size() - 1), "frame completed after " + (i + 1) + " fragments");
+    }
+
+    return frame;
+  }
+
+  private static ByteBuffer copy(ByteBuffer b) {
+    ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+    copy.put(b.duplicate());
+    copy.flip();
+    return copy;
+  }
+}
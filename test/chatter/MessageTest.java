@@ -0,0 +1,198 @@
+package chatter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Text and binary frames round tripped through the codec, and frames the codec must refuse.
+ */
+class MessageTest {
+
+  private static final String HEX_ID = "0123456789abcdef0123456789abcdef";
+
+  static void testTextAndBinaryFramesDecodeToTheSameMessage() {
+    Map<String, String> m = new HashMap<>();
+    m.put("type", "send");
+    m.put("id", HEX_ID);
+    m.put("token", Hashing.generateRandomHash());
+    m.put("recipient", "bob");
+    m.put("text", "h\u00e9llo: w\u00f6rld \ud83d\ude00");
+    m.put("mood", "cheerful");
+
+    Map<String, String> text = map(Message.encode(m, Message.VERSION));
+    Map<String, String> binary = map(Message.encode(m, Message.BINARY_VERSION));
+
+    Tests.check(Message.validate(text), "text frame failed validation");
+    Tests.check(Message.validate(binary), "binary frame failed validation");
+    Tests.equal(Message.VERSION, Message.versionOf(text));
+    Tests.equal(Message.BINARY_VERSION, Message.versionOf(binary));
+
+    text.remove(Message.VERSION_KEY);
+    binary.remove(Message.VERSION_KEY);
+    Tests.equal(m, text);
+    Tests.equal(m, binary);
+  }
+
+  static void testEnvelopesRoundTripInBothVersions() {
+    for (String version : new String[] { Message.VERSION, Message.BINARY_VERSION }) {
+      Envelope m = Envelope.acquire(MessageType.FORWARD);
+      m.set(Envelope.Field.SENDER, "alice");
+      m.set(Envelope.Field.TEXT, "line one\nline two");
+      m.set(Envelope.Field.TARGET, HEX_ID);
+      m.set(Envelope.Field.SEQ, 42);
+
+      Envelope n = envelope(Message.encode(m, version));
+
+      Tests.equal(version, n.getVersion());
+      Tests.equal(MessageType.FORWARD, n.getType());
+      Tests.equal(m.getId(), n.getId());
+      Tests.equal("alice", n.get(Envelope.Field.SENDER));
+      Tests.equal("line one\nline two", n.get(Envelope.Field.TEXT));
+      Tests.equal(HEX_ID, n.get(Envelope.Field.TARGET));
+      Tests.equal(42L, n.getLong(Envelope.Field.SEQ));
+      Tests.check(!n.has(Envelope.Field.TOKEN), "absent field decoded");
+
+      m.release();
+    }
+  }
+
+  static void testHexIdsArePackedIntoTheHeader() {
+    Envelope m = Envelope.acquire(MessageType.ACK);
+    m.setId(HEX_ID);
+    byte[] packed = Message.encode(m, Message.BINARY_VERSION);
+
+    Envelope n = envelope(packed);
+    Tests.check(n.isPackedId(), "hex id not packed");
+    Tests.equal(HEX_ID, n.getId());
+
+    // anything but 32 lower case hex characters travels in a field of its own, and costs more than the header
+    for (String id : new String[] { "request-1", HEX_ID.toUpperCase(), HEX_ID.substring(1) }) {
+      m.setId(id);
+      byte[] tagged = Message.encode(m, Message.BINARY_VERSION);
+
+      Tests.check(tagged.length > packed.length, "id " + id + " packed into the header");
+      Tests.equal(id, envelope(tagged).getId());
+      Tests.equal(id, map(tagged).get("id"));
+    }
+
+    m.release();
+  }
+
+  static void testHexFieldsArePackedAndOthersKeptAsText() {
+    Envelope m = Envelope.acquire(MessageType.SEND);
+    m.set(Envelope.Field.TOKEN, HEX_ID);
+    m.set(Envelope.Field.RECIPIENT, HEX_ID.toUpperCase());
+
+    Envelope n = envelope(Message.encode(m, Message.BINARY_VERSION));
+    Tests.equal(Envelope.PACKED, n.kind(Envelope.Field.TOKEN));
+    Tests.equal(HEX_ID, n.get(Envelope.Field.TOKEN));
+    Tests.equal(Envelope.VIEW, n.kind(Envelope.Field.RECIPIENT));
+    Tests.equal(HEX_ID.toUpperCase(), n.get(Envelope.Field.RECIPIENT));
+
+    m.release();
+  }
+
+  static void testHexTagsMustCarrySixteenBytes() {
+    for (int length : new int[] { 0, 4, 15, 17 }) {
+      byte[] frame = frame(0x80 | Envelope.Field.TOKEN.tag(), new byte[length]);
+
+      Tests.check(!Message.decode(ByteBuffer.wrap(frame), new Envelope()), "hex field of " + length + " bytes accepted");
+      Tests.check(Message.decode(frame, frame.length) == null, "hex field of " + length + " bytes decoded");
+    }
+  }
+
+  static void testUnknownTagsAreRejected() {
+    byte[] frame = frame(40, "x".getBytes(StandardCharsets.UTF_8));
+
+    Tests.check(!Message.decode(ByteBuffer.wrap(frame), new Envelope()), "unknown tag accepted");
+    Tests.check(Message.decode(frame, frame.length) == null, "unknown tag decoded");
+  }
+
+  static void testFieldsRunningPastTheFrameAreRejected() {
+    byte[] frame = frame(Envelope.Field.TEXT.tag(), "hello".getBytes(StandardCharsets.UTF_8));
+
+    // claim more bytes than the frame holds, then put a valid hash back over the lie
+    ByteBuffer b = ByteBuffer.wrap(frame);
+    b.putShort(19, (short) 200);
+    b.position(frame.length - 20);
+    Hashing.putDigest(b, 0, frame.length - 20);
+
+    Tests.check(!Message.decode(ByteBuffer.wrap(frame), new Envelope()), "overlong field accepted");
+    Tests.check(Message.decode(frame, frame.length) == null, "overlong field decoded");
+  }
+
+  static void testTruncatedFramesAreRejected() {
+    Envelope m = Envelope.acquire(MessageType.SEND);
+    m.set(Envelope.Field.TOKEN, HEX_ID);
+    m.set(Envelope.Field.TEXT, "hello");
+    byte[] frame = Message.encode(m, Message.BINARY_VERSION);
+    m.release();
+
+    for (int length = 0; length < frame.length; length++) {
+      ByteBuffer b = ByteBuffer.wrap(frame, 0, length);
+
+      Tests.check(!Message.decode(b, new Envelope()), "frame cut to " + length + " bytes accepted");
+
+      Map<String, String> map = Message.decode(frame, length);
+      Tests.check(map == null || !Message.validate(map), "frame cut to " + length + " bytes decoded");
+    }
+  }
+
+  static void testFramesWithABadHashAreRejected() {
+    Envelope m = Envelope.acquire(MessageType.SEND);
+    m.set(Envelope.Field.TEXT, "hello");
+
+    for (String version : new String[] { Message.VERSION, Message.BINARY_VERSION }) {
+      byte[] frame = Message.encode(m, version);
+      String s = new String(frame, StandardCharsets.ISO_8859_1);
+      frame[s.indexOf("hello")] = 'j';
+
+      Tests.check(!Message.decode(ByteBuffer.wrap(frame), new Envelope()), version + " frame with a bad hash accepted");
+      Tests.check(!Message.validate(Message.decode(frame, frame.length)), version + " frame with a bad hash validated");
+    }
+
+    m.release();
+  }
+
+  static void testMessagesThatDoNotFitAreNotEncoded() {
+    Envelope m = Envelope.acquire(MessageType.SEND);
+    m.set(Envelope.Field.TEXT, "x".repeat(70000));
+
+    Tests.check(Message.encode(m, Message.BINARY_VERSION) == null, "oversize message encoded");
+
+    m.setType(null);
+    m.set(Envelope.Field.TEXT, "hello");
+    Tests.check(Message.encode(m, Message.BINARY_VERSION) == null, "message without a type encoded");
+
+    m.release();
+  }
+
+  /**
+   * A binary SEND frame with no id and a single raw field, under a valid hash.
+   */
+  private static byte[] frame(int tag, byte[] value) {
+    ByteBuffer b = ByteBuffer.allocate(2 + 16 + 3 + value.length + 20);
+    b.put((byte) 2);
+    b.put((byte) MessageType.SEND.ordinal());
+    b.put(new byte[16]);
+    b.put((byte) tag);
+    b.putShort((short) value.length);
+    b.put(value);
+    Hashing.putDigest(b, 0, b.position());
+    return b.array();
+  }
+
+  private static Map<String, String> map(byte[] frame) {
+    Map<String, String> map = Message.decode(frame, frame.length);
+    Tests.check(map != null, "frame not decoded");
+    return map;
+  }
+
+  private static Envelope envelope(byte[] frame) {
+    Envelope e = new Envelope();
+    Tests.check(Message.decode(ByteBuffer.wrap(frame), e), "frame not decoded");
+    return e;
+  }
+}
@@ -0,0 +1,122 @@
+package chatter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expiry, back off, abandonment and cancellation in the timing wheel.
+ */
+class RetransmitSchedulerTest {
+
+  /**
+   * Records the retransmissions of one message and whether it was abandoned.
+   */
+  static class Recorder implements RetransmitScheduler.Retransmission {
+    final List<Integer> attempts = new CopyOnWriteArrayList<>();
+    final List<Long> times = new CopyOnWriteArrayList<>();
+    final CountDownLatch abandoned = new CountDownLatch(1);
+
+    @Override
+    public void retransmit(int attempt) {
+      attempts.add(attempt);
+      times.add(System.nanoTime());
+    }
+
+    @Override
+    public void abandon() {
+      abandoned.countDown();
+    }
+  }
+
+  static void testRetransmitsUntilTheRetryLimitThenAbandons() throws InterruptedException {
+    RetransmitScheduler scheduler = new RetransmitScheduler(5, 8, 3, 1000);
+    Recorder r = new Recorder();
+
+    scheduler.schedule("a", 10, r);
+
+    Tests.check(r.abandoned.await(2, TimeUnit.SECONDS), "never abandoned");
+    Tests.equal(Arrays.asList(1, 2, 3), r.attempts);
+    Tests.check(!scheduler.isPending("a"), "still pending after abandon");
+    Tests.equal(3L, scheduler.getRetransmitted());
+    Tests.equal(1L, scheduler.getAbandoned());
+  }
+
+  static void testBacksOffBetweenAttempts() throws InterruptedException {
+    RetransmitScheduler scheduler = new RetransmitScheduler(5, 64, 3, 1000);
+    Recorder r = new Recorder();
+
+    scheduler.schedule("a", 20, r);
+    Tests.check(r.abandoned.await(2, TimeUnit.SECONDS), "never abandoned");
+
+    // the delay doubles from 20ms, so the gaps are 40ms and then 80ms, give or take a tick
+    long first = TimeUnit.NANOSECONDS.toMillis(r.times.get(1) - r.times.get(0));
+    long second = TimeUnit.NANOSECONDS.toMillis(r.times.get(2) - r.times.get(1));
+    Tests.check(first >= 30, "second attempt after " + first + "ms");
+    Tests.check(second >= 70, "third attempt after " + second + "ms");
+    Tests.check(second > first, "no back off: " + first + "ms then " + second + "ms");
+  }
+
+  static void testDelaysLongerThanTheWheelWaitOutTheirRounds() throws InterruptedException {
+    // 8 buckets of 5ms go round in 40ms, so a 100ms delay takes more than two rounds
+    RetransmitScheduler scheduler = new RetransmitScheduler(5, 8, 1, 1000);
+    Recorder r = new Recorder();
+
+    long start = System.nanoTime();
+    scheduler.schedule("a", 100, r);
+
+    Tests.check(r.abandoned.await(2, TimeUnit.SECONDS), "never abandoned");
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(r.times.get(0) - start);
+    Tests.check(elapsed >= 90, "fired after " + elapsed + "ms");
+  }
+
+  static void testCancelledMessagesAreNeverRetransmitted() throws InterruptedException {
+    RetransmitScheduler scheduler = new RetransmitScheduler(5, 8, 3, 1000);
+    Recorder r = new Recorder();
+
+    scheduler.schedule("a", 20, r);
+    Tests.check(scheduler.isPending("a"), "not pending once scheduled");
+    Tests.check(scheduler.cancel("a"), "cancel found nothing");
+    Tests.check(!scheduler.cancel("a"), "cancelled twice");
+
+    Thread.sleep(100);
+    Tests.equal(0, r.attempts.size());
+    Tests.equal(1L, r.abandoned.getCount());
+    Tests.equal(0, scheduler.size());
+  }
+
+  static void testCancelAfterARetransmissionStopsTheRest() throws InterruptedException {
+    RetransmitScheduler scheduler = new RetransmitScheduler(5, 8, 5, 1000);
+    Recorder r = new Recorder();
+
+    scheduler.schedule("a", 10, r);
+
+    long deadline = System.currentTimeMillis() + 2000;
+    while (r.attempts.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+
+    Tests.check(scheduler.cancel("a"), "not pending after the first retransmission");
+    int attempts = r.attempts.size();
+
+    Thread.sleep(200);
+    Tests.equal(attempts, r.attempts.size());
+    Tests.equal(1L, r.abandoned.getCount());
+  }
+
+  static void testSchedulingAgainReplacesThePendingRetransmission() throws InterruptedException {
+    RetransmitScheduler scheduler = new RetransmitScheduler(5, 8, 1, 1000);
+    Recorder replaced = new Recorder();
+    Recorder current = new Recorder();
+
+    scheduler.schedule("a", 20, replaced);
+    scheduler.schedule("a", 20, current);
+    Tests.equal(1, scheduler.size());
+
+    Tests.check(current.abandoned.await(2, TimeUnit.SECONDS), "never abandoned");
+    Tests.equal(0, replaced.attempts.size());
+    Tests.equal(Arrays.asList(1), current.attempts);
+  }
+}
@@ -0,0 +1,97 @@
+package chatter;
+
+import java.net.InetAddress;
+
+/**
+ * The RFC 6298 estimator, and Karn's rule as applied to messages in flight.
+ */
+class RttEstimatorTest {
+
+  static void testStartsFromTheInitialTimeout() {
+    RttEstimator rtt = new RttEstimator();
+
+    Tests.equal(RttEstimator.INITIAL_TIMEOUT, rtt.getTimeout());
+    Tests.equal(-1L, rtt.getEstimated());
+  }
+
+  static void testFirstSampleSetsTheMeanAndHalfOfItAsTheDeviation() {
+    RttEstimator rtt = new RttEstimator();
+    rtt.sample(100);
+
+    Tests.equal(100L, rtt.getEstimated());
+    Tests.equal(50L, rtt.getDeviation());
+    Tests.equal(300L, rtt.getTimeout());
+  }
+
+  static void testLaterSamplesAreSmoothed() {
+    RttEstimator rtt = new RttEstimator();
+    rtt.sample(100);
+    rtt.sample(100);
+
+    // the deviation decays by a quarter towards zero, the mean stays put
+    Tests.equal(100L, rtt.getEstimated());
+    Tests.equal(37L, rtt.getDeviation());
+    Tests.equal(250L, rtt.getTimeout());
+
+    rtt.sample(180);
+
+    // mean moves an eighth of the way, deviation a quarter of the way towards the 80ms difference
+    Tests.equal(110L, rtt.getEstimated());
+    Tests.equal(48L, rtt.getDeviation());
+  }
+
+  static void testTimeoutIsClamped() {
+    RttEstimator fast = new RttEstimator();
+    fast.sample(1);
+    Tests.equal(RttEstimator.MIN_TIMEOUT, fast.getTimeout());
+
+    RttEstimator slow = new RttEstimator();
+    slow.sample(100000);
+    Tests.equal(RttEstimator.MAX_TIMEOUT, slow.getTimeout());
+  }
+
+  static void testNegativeSamplesAreIgnored() {
+    RttEstimator rtt = new RttEstimator();
+    rtt.sample(-1);
+
+    Tests.equal(-1L, rtt.getEstimated());
+    Tests.equal(RttEstimator.INITIAL_TIMEOUT, rtt.getTimeout());
+  }
+
+  static void testRetransmittedMessagesCannotBeTimed() {
+    InFlight inflight = new InFlight(16, 60000);
+    inflight.track("once", null);
+    inflight.track("twice", null);
+
+    inflight.retransmitted("twice");
+
+    Tests.check(inflight.remove("once").getSent() > 0, "a message sent once lost its send time");
+    Tests.equal(-1L, inflight.remove("twice").getSent());
+  }
+
+  static void testRetransmittedPostsCannotBeTimed() throws Exception {
+    Session sender = new Session("t1", "alice", InetAddress.getLoopbackAddress(), 40001);
+    Session member = new Session("t2", "bob", InetAddress.getLoopbackAddress(), 40002);
+
+    Channel channel = new Channel("#room");
+    channel.join(sender);
+    channel.join(member);
+
+    Envelope forward = new Envelope();
+    forward.setType(MessageType.FORWARD);
+    forward.newId();
+
+    Channel.Broadcast b = channel.broadcast(forward.getId(), forward, sender);
+    Tests.check(b.getSent() > 0, "a post sent once lost its send time");
+
+    b.retransmitted();
+    Tests.equal(-1L, b.getSent());
+  }
+
+  static void testRetransmittingAnUnknownMessageIsHarmless() {
+    InFlight inflight = new InFlight(16, 60000);
+    inflight.retransmitted("missing");
+
+    Tests.equal(0, inflight.size());
+  }
+}
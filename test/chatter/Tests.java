@@ -0,0 +1,60 @@
+package chatter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Objects;
+
+/**
+ * Tests runs the static, argumentless test methods of the classes named on the command line, reporting every failure
+ * and exiting with a non-zero status if there was one. Checks are plain methods that throw AssertionError, so that the
+ * tests need nothing beyond the JDK.
+ *
+ * @version     1.0
+ */
+public class Tests {
+
+  public static void main(String[] args) throws ClassNotFoundException, IllegalAccessException {
+    int run = 0;
+    int failed = 0;
+
+    for (String name : args) {
+      Class<?> c = Class.forName(name);
+      Method[] methods = c.getDeclaredMethods();
+      Arrays.sort(methods, Comparator.comparing(Method::getName));
+
+      for (Method m : methods) {
+        if (!Modifier.isStatic(m.getModifiers()) || !m.getName().startsWith("test") || m.getParameterCount() != 0) {
+          continue;
+        }
+
+        run++;
+
+        try {
+          m.invoke(null);
+        } catch (InvocationTargetException e) {
+          failed++;
+          System.out.println("FAILED " + c.getSimpleName() + "." + m.getName() + ": " + e.getCause());
+          e.getCause().printStackTrace(System.out);
+        }
+      }
+    }
+
+    System.out.println(run + " tests, " + failed + " failed");
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+  static void equal(Object expected, Object actual) {
+    if (!Objects.equals(expected, actual)) {
+      throw new AssertionError("expected " + expected + " but was " + actual);
+    }
+  }
+}